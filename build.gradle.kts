@@ -31,6 +31,9 @@ dependencies {
     implementation("org.slf4j:slf4j-api:1.7.9")
     implementation("org.slf4j:slf4j-log4j12:2.0.7")
     implementation("org.controlsfx:controlsfx:11.1.2")
+
+    testImplementation("org.junit.jupiter:junit-jupiter:5.10.2")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 tasks.test {
@@ -1,6 +1,7 @@
 package org.cecad.lmd;
 
 import org.cecad.lmd.commands.MainCommand;
+import org.cecad.lmd.common.SpatialIndexService;
 import org.controlsfx.control.action.Action;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,6 +10,8 @@ import qupath.lib.gui.actions.ActionTools;
 import qupath.lib.gui.actions.annotations.ActionMenu;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.extensions.QuPathExtension;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.images.ImageData;
 
 public class QuCutExtension implements QuPathExtension {
     private static final Logger logger = LoggerFactory.getLogger(QuCutExtension.class);
@@ -16,6 +19,20 @@ public class QuCutExtension implements QuPathExtension {
     @Override
     public void installExtension(QuPathGUI qupath) {
         qupath.installActions(ActionTools.getAnnotatedActions(new LMDSupportCommands(qupath)));
+        // Spatial indexes are kept per image, drop the one of an image no viewer shows anymore.
+        // The property follows the active viewer, switching between viewers of a multi-view layout must keep the index
+        qupath.imageDataProperty().addListener((observable, oldImageData, newImageData) -> {
+            if (oldImageData != null && !isShownInAnyViewer(qupath, oldImageData))
+                SpatialIndexService.release(oldImageData);
+        });
+    }
+
+    private static boolean isShownInAnyViewer(QuPathGUI qupath, ImageData<?> imageData) {
+        for (QuPathViewer viewer : qupath.getAllViewers()) {
+            if (viewer.getImageData() == imageData)
+                return true;
+        }
+        return false;
     }
 
     @Override
@@ -1,7 +1,7 @@
 package org.cecad.lmd.commands;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.cecad.lmd.common.Constants;
+import org.cecad.lmd.common.CapPlan;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
@@ -17,6 +17,7 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import java.awt.geom.AffineTransform;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
@@ -24,7 +25,6 @@ import java.util.*;
 import static org.cecad.lmd.common.Constants.ObjectTypes.*;
 import static org.cecad.lmd.common.Constants.FeatureGeoTypes.*;
 import static org.cecad.lmd.common.Constants.CalibrationPointsNames.*;
-import static org.cecad.lmd.common.Constants.WellDataFileFields.*;
 import static org.cecad.lmd.common.Constants.CollectorTypes.*;
 
 public class BuildXmlCommand {
@@ -33,6 +33,7 @@ public class BuildXmlCommand {
     private final String inputPath;
     private final String outputPath;
     private final String collectorName;
+    private AffineTransform coordinateTransform = null; // applied while writing, e.g. to mirror the slide or map to the stage
 
     public BuildXmlCommand(String inputPath, String outputPath, String collectorName){
         this.inputPath = inputPath;
@@ -40,7 +41,30 @@ public class BuildXmlCommand {
         this.collectorName = collectorName;
     }
 
-    boolean createLeicaXML(Map<String, Object>[] collectorParams) {
+    /**
+     * Transform applied to all written coordinates, calibration points included; the GeoJSON input is left as it is.
+     * E.g. a mirror, or the mapping from image pixels to the LMD's stage.
+     */
+    public void setCoordinateTransform(AffineTransform coordinateTransform){
+        this.coordinateTransform = coordinateTransform;
+    }
+
+    // Reads the points into one interleaved x, y array, transformed in a single pass
+    private double[] packPoints(List<JsonNode> points){
+        double[] xy = new double[points.size() * 2];
+        for (int i = 0; i < points.size(); i++) {
+            xy[i * 2] = points.get(i).get(0).asDouble();
+            xy[i * 2 + 1] = points.get(i).get(1).asDouble();
+        }
+        if (coordinateTransform != null)
+            coordinateTransform.transform(xy, 0, xy, 0, points.size());
+        return xy;
+    }
+
+    /**
+     * @param capPlan cap of each shape, in the order of the shapes in the GeoJSON; null to write no CapIDs
+     */
+    boolean createLeicaXML(CapPlan capPlan) {
         try {
             // Read GeoJSON file
             File geojsonFile = new File(inputPath);
@@ -80,9 +104,10 @@ public class BuildXmlCommand {
             }
 
             // Add calibration points to the XML
+            double[] calibrationXY = packPoints(Arrays.asList(calibrationPoints));
             for (int i = 0; i < calibrationPoints.length; i++) {
-                double x = calibrationPoints[i].get(0).asDouble();
-                double y = calibrationPoints[i].get(1).asDouble();
+                double x = calibrationXY[i * 2];
+                double y = calibrationXY[i * 2 + 1];
                 Element xElement = createTextElement(xmlDoc, "X_CalibrationPoint_" + (i + 1), String.valueOf(x));
                 imageDataElement.appendChild(xElement);
                 Element yElement = createTextElement(xmlDoc, "Y_CalibrationPoint_" + (i + 1), String.valueOf(y));
@@ -104,6 +129,25 @@ public class BuildXmlCommand {
             Element shapeCountElement = createTextElement(xmlDoc, "ShapeCount", String.valueOf(shapeCount));
             imageDataElement.appendChild(shapeCountElement);
 
+            // The plan was made from the same detections, in the same order
+            if (capPlan != null && capPlan.getShapeCount() != shapeCount) {
+                logger.error("The cap plan covers {} shapes, the GeoJSON has {}", capPlan.getShapeCount(), shapeCount);
+                return false;
+            }
+
+            // All shapes' vertices packed back to back, shapeOffsets[i] is the first point of shape i
+            List<JsonNode> shapePoints = new ArrayList<>();
+            int[] shapeOffsets = new int[shapeCount + 1];
+            int packedShapes = 0;
+            for (JsonNode feature : features) {
+                if (ANNOTATION.equals(feature.path("properties").path("objectType").asText()))
+                    continue;
+                shapeOffsets[packedShapes++] = shapePoints.size();
+                feature.get("geometry").get("coordinates").get(0).forEach(shapePoints::add);
+            }
+            shapeOffsets[packedShapes] = shapePoints.size();
+            double[] shapesXY = packPoints(shapePoints);
+
             // Handle each shape: PointCount, CapID, coordinates
             int shapeIndex = 1;
             for (JsonNode feature : features) {
@@ -112,44 +156,25 @@ public class BuildXmlCommand {
                     Element shapeElement = xmlDoc.createElement("Shape_" + shapeIndex);
                     imageDataElement.appendChild(shapeElement);
 
-                    JsonNode geometry = feature.get("geometry");
-                    JsonNode coordinates = geometry.get("coordinates").get(0);
-
-                    int pointCount = coordinates.size();
+                    int firstPoint = shapeOffsets[shapeIndex - 1];
+                    int pointCount = shapeOffsets[shapeIndex] - firstPoint;
                     Element pointCountElement = createTextElement(xmlDoc, "PointCount", String.valueOf(pointCount));
                     shapeElement.appendChild(pointCountElement);
 
-                    if (collectorParams != null && !Objects.equals(collectorName, NONE)) {
-                        JsonNode classificationNode = feature.path("properties").path("classification");
-
-                        if (!classificationNode.isMissingNode()) {
-                            String featureClassName = classificationNode.path("name").asText();
-                            if (Objects.equals(collectorName, _96_WELL_PLATE))
-                                addCapIDForClasses_96Well(xmlDoc, shapeElement, featureClassName, collectorParams);
-                            else
-                                addCapIDForClasses(xmlDoc, shapeElement, featureClassName, collectorParams);
-                        }
-                        else{
-                            logger.warn("Classification is missing.");
-                            if (Objects.equals(collectorName, _96_WELL_PLATE))
-                                addCapIDBasic_96Well(xmlDoc, shapeElement, collectorParams);
-                            else
-                                addCapIDBasic(xmlDoc, shapeElement, collectorParams);
-                        }
-                    }
-                    else{
-                        logger.error("Collector Params is null!");
+                    if (capPlan != null && !Objects.equals(collectorName, NONE)) {
+                        String capLabel = capPlan.getCapLabel(shapeIndex - 1);
+                        if (capLabel != null)
+                            shapeElement.appendChild(createTextElement(xmlDoc, "CapID", capLabel));
                     }
 
-                    int pointIndex = 1;
-                    for (JsonNode point : coordinates) {
-                        double x = point.get(0).asDouble();
-                        double y = point.get(1).asDouble();
+                    for (int pointIndex = 1; pointIndex <= pointCount; pointIndex++) {
+                        int packedIndex = (firstPoint + pointIndex - 1) * 2;
+                        double x = shapesXY[packedIndex];
+                        double y = shapesXY[packedIndex + 1];
                         Element xElement = createTextElement(xmlDoc, "X_" + pointIndex, String.valueOf(x));
                         shapeElement.appendChild(xElement);
                         Element yElement = createTextElement(xmlDoc, "Y_" + pointIndex, String.valueOf(y));
                         shapeElement.appendChild(yElement);
-                        pointIndex++;
                     }
 
                     shapeIndex++;
@@ -180,113 +205,6 @@ public class BuildXmlCommand {
         return element;
     }
 
-    private void addCapIDForClasses(Document doc, Element parentShape,
-                                    String featureClassName,
-                                    Map<String, Object>[] wellToClassAssignments){
-
-        for (Map<String, Object> assignment : wellToClassAssignments) {
-            String objectClass = (String) assignment.get(OBJECT_CLASS_TYPE);
-            String wellLabel = (String) assignment.get(WELL_LABEL);
-            int objectQty = (int) assignment.get(OBJECT_QTY);
-
-            if (objectClass == null)
-                continue;
-
-            if (objectClass.equals(Constants.CapAssignments.NO_ASSIGNMENT) || objectQty == 0)
-                continue;
-
-            if (objectClass.equals(featureClassName)) {
-                parentShape.appendChild(createTextElement(doc, "CapID", wellLabel));
-                assignment.put(OBJECT_QTY, objectQty - 1);
-                break;
-            }
-        }
-    }
-
-    private void addCapIDForClasses_96Well(Document doc, Element parentShape,
-                                           String featureClassName,
-                                           Map<String, Object>[] wellsCountToClassAssignments) {
-        for (Map<String, Object> assignment : wellsCountToClassAssignments) {
-            String objectClass = (String) assignment.get(OBJECT_CLASS_TYPE);
-            List<String> wellLabels = (List<String>) assignment.get("wellLabels");
-            int objectQty = (int) assignment.get(OBJECT_QTY);
-            int objectsPerWell = (int) assignment.get("objectsPerWell");
-            int redundantObjects = (int) assignment.get("redundantObjects");
-            int wellCount = (int)  assignment.get(WELL_COUNT);
-
-            if (objectClass == null)
-                continue;
-
-            if (objectClass.equals(Constants.CapAssignments.NO_ASSIGNMENT) || !objectClass.equals(featureClassName)
-                    || objectQty == 0 || wellCount == 0)
-                continue;
-
-            if (objectsPerWell == 0) {
-                assignment.put(WELL_COUNT, wellCount - 1);
-                wellCount = wellCount - 1;
-                int objectsPerWellAtTheBeginning = (int) assignment.get("objectsPerWellAtTheBeginning");
-                assignment.put("objectsPerWell", objectsPerWellAtTheBeginning);
-                objectsPerWell = objectsPerWellAtTheBeginning;
-            }
-
-            String wellLabel = wellLabels.get(wellCount - 1);
-
-            // put wellLabel in the xml
-            parentShape.appendChild(createTextElement(doc, "CapID", wellLabel));
-            assignment.put(OBJECT_QTY, objectQty - 1);
-            assignment.put("objectsPerWell", objectsPerWell - 1);
-            break;
-        }
-    }
-
-
-    private void addCapIDBasic(Document doc, Element parentShape,
-                               Map<String, Object>[] wellToClassAssignments){
-
-        for (Map<String, Object> assignment : wellToClassAssignments) {
-            String wellLabel = (String) assignment.get(WELL_LABEL);
-            int objectQty = (int) assignment.get(OBJECT_QTY);
-
-            if (objectQty == 0)
-                continue;
-
-            parentShape.appendChild(createTextElement(doc, "CapID", wellLabel));
-            assignment.put(OBJECT_QTY, objectQty - 1);
-            break;
-        }
-    }
-
-    private void addCapIDBasic_96Well(Document doc, Element parentShape,
-                               Map<String, Object>[] wellToClassAssignments){
-
-        for (Map<String, Object> assignment : wellToClassAssignments) {
-            List<String> wellLabels = (List<String>) assignment.get("wellLabels");
-            int objectQty = (int) assignment.get(OBJECT_QTY);
-            int objectsPerWell = (int) assignment.get("objectsPerWell");
-            int redundantObjects = (int) assignment.get("redundantObjects");
-            int wellCount = (int)  assignment.get(WELL_COUNT);
-
-            if (objectQty == 0 || wellCount == 0)
-                continue;
-
-            if (objectsPerWell == 0) {
-                assignment.put(WELL_COUNT, wellCount - 1);
-                wellCount = wellCount - 1;
-                int objectsPerWellAtTheBeginning = (int) assignment.get("objectsPerWellAtTheBeginning");
-                assignment.put("objectsPerWell", objectsPerWellAtTheBeginning);
-                objectsPerWell = objectsPerWellAtTheBeginning;
-            }
-
-            String wellLabel = wellLabels.get(wellCount - 1);
-
-            // put wellLabel in the xml
-            parentShape.appendChild(createTextElement(doc, "CapID", wellLabel));
-            assignment.put(OBJECT_QTY, objectQty - 1);
-            assignment.put("objectsPerWell", objectsPerWell - 1);
-            break;
-        }
-    }
-
     public int getShapeCount(){
         return shapeCount;
     }
@@ -1,26 +1,48 @@
 package org.cecad.lmd.commands;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.StringProperty;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
+import org.cecad.lmd.common.AffineFit;
+import org.cecad.lmd.common.CapPlan;
+import org.cecad.lmd.common.ClassStatistics;
 import org.cecad.lmd.common.ClassUtils;
+import org.cecad.lmd.common.ExportSet;
 import org.cecad.lmd.common.ObjectUtils;
+import org.cecad.lmd.common.RemovableCentroidIndex;
+import org.cecad.lmd.common.SpatialIndexService;
+import org.cecad.lmd.common.WellAssignment;
+import org.cecad.lmd.common.WellPlateFormat;
 import org.cecad.lmd.ui.IOUtils;
 import org.cecad.lmd.ui.MainPane;
+import org.cecad.lmd.ui.OverlapValidationOverlay;
 import org.cecad.lmd.common.Constants;
+import org.cecad.lmd.common.Constants.ExportCoordinates;
+import org.cecad.lmd.common.Constants.ExportMirror;
 import org.controlsfx.control.action.Action;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.fx.dialogs.Dialogs;
+import qupath.lib.geom.Point2;
 import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.PixelCalibration;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.roi.interfaces.ROI;
 
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
@@ -29,9 +51,7 @@ import java.util.*;
 
 import static org.cecad.lmd.common.Constants.CalibrationPointsNames.*;
 import static org.cecad.lmd.common.Constants.CollectorTypes.NONE;
-import static org.cecad.lmd.common.Constants.CollectorTypes._96_WELL_PLATE;
 import static org.cecad.lmd.common.Constants.Paths.*;
-import static org.cecad.lmd.common.Constants.WellDataFileFields.OBJECT_CLASS_TYPE;
 import static org.cecad.lmd.ui.IOUtils.createSubdirectory;
 import static qupath.lib.scripting.QP.exportObjectsToGeoJson;
 
@@ -44,10 +64,16 @@ public class MainCommand implements Runnable {
     private Stage stage;
     private final QuPathGUI qupath;
     MainPane mainPane;
-    private Collection<PathObject> detectionsToExport; // contains detections + annotations for calibration points
+    private final Map<String, ExportSet> exportSets = new HashMap<>(); // by ALL / SELECTED, kept while the window is open
+    private ExportSet exportSet = null;
+    private OverlapValidationOverlay overlapValidator = null;
+    private final IntegerProperty overlapCount = new SimpleIntegerProperty(0);
+    private final BooleanProperty overlapValidation = new SimpleBooleanProperty(false); // the pane's checkbox is bound to it
+    private static final StringProperty stageCalibrationPoints = PathPrefs.createPersistentPreference("qucut.stageCalibrationPoints", "");
 
     public MainCommand(QuPathGUI qupath) {
         this.qupath = qupath;
+        overlapValidation.addListener((observable, oldValue, newValue) -> setOverlapValidation(newValue));
     }
 
     public QuPathGUI getQuPath() {
@@ -74,10 +100,34 @@ public class MainCommand implements Runnable {
     }
 
     public void closeStage(){
+        overlapValidation.set(false);
+        clearExportSets();
         if (stage.isShowing())
             stage.close();
     }
 
+    public BooleanProperty overlapValidationProperty(){
+        return overlapValidation;
+    }
+
+    private void setOverlapValidation(boolean enabled){
+        if (enabled && overlapValidator == null) {
+            overlapValidator = new OverlapValidationOverlay(qupath.getViewer());
+            overlapCount.bind(overlapValidator.conflictCountProperty());
+            overlapValidator.attach();
+        }
+        else if (!enabled && overlapValidator != null) {
+            overlapCount.unbind();
+            overlapValidator.detach();
+            overlapValidator = null;
+            overlapCount.set(0);
+        }
+    }
+
+    public IntegerProperty overlapCountProperty(){
+        return overlapCount;
+    }
+
     public void clearWellData(){
         IOUtils.clearJsonFiles(TEMP_SUBDIRECTORY.toString(), logger);
     }
@@ -107,24 +157,31 @@ public class MainCommand implements Runnable {
         return stage;
     }
 
+    // Both sets follow the hierarchy and the selection once built, switching between them only swaps the active one
     public void updateDetectionsToExport(){
         String comboBoxChoice = mainPane.getSelectedOrAll();
         PathObjectHierarchy hierarchy = qupath.getImageData().getHierarchy();
+        if (exportSet != null && exportSet.getHierarchy() != hierarchy)
+            clearExportSets(); // another image was opened
 
-        if (comboBoxChoice.equals(SELECTED)){
-            if (hierarchy.getSelectionModel().noSelection()) {
-                Dialogs.showWarningNotification("No selection detected",
-                        "No selection has been detected yet. Please select detections to process.");
-                return;
-            }
-            detectionsToExport = new ArrayList<>(hierarchy.getSelectionModel().getSelectedObjects());
-            ObjectUtils.filterOutAnnotations(detectionsToExport);
-        }
-        else {
-            detectionsToExport = hierarchy.getDetectionObjects();
+        exportSet = exportSets.computeIfAbsent(comboBoxChoice, choice -> {
+            ExportSet newSet = new ExportSet(hierarchy, choice.equals(SELECTED));
+            newSet.attach();
+            return newSet;
+        });
+        if (comboBoxChoice.equals(SELECTED) && hierarchy.getSelectionModel().noSelection()) {
+            Dialogs.showWarningNotification("No selection detected",
+                    "No selection has been detected yet. Please select detections to process.");
         }
     }
 
+    private void clearExportSets(){
+        for (ExportSet set : exportSets.values())
+            set.detach();
+        exportSets.clear();
+        exportSet = null;
+    }
+
     public void openCollectorsPane(MainPane mainPane) {
         SetCollectorCommand setCollectorCommand = new SetCollectorCommand(qupath, mainPane);
         setCollectorCommand.run();
@@ -155,13 +212,21 @@ public class MainCommand implements Runnable {
 
         // TODO: test if optimizeDetectionsOrder works
         updateDetectionsToExport();
-        optimizeDetectionsOrder(detectionsToExport);
+        List<PathObject> detectionsToExport = optimizeDetectionsOrder(exportSet.getObjects());
         Collection<PathObject> objectsToExport = ObjectUtils.getCalibrationPoints(qupath.getImageData().getHierarchy().getAnnotationObjects(), CP1, CP2, CP3);
         if (objectsToExport.isEmpty()){
             Dialogs.showErrorNotification("Missing Calibration Points",
                     "Please add 3 'Point' annotations, named " + CP1 + ", " + CP2 + " and " + CP3 + ".");
             return;
         }
+        AffineTransform exportTransform;
+        if (Objects.equals(mainPane.getExportCoordinates(), ExportCoordinates.STAGE)) {
+            exportTransform = getStageTransform();
+            if (exportTransform == null)
+                return;
+        }
+        else
+            exportTransform = getExportMirrorTransform();
         objectsToExport.addAll(detectionsToExport);
         exportObjectsToGeoJson(objectsToExport, pathGeoJSON, "FEATURE_COLLECTION");
 
@@ -169,23 +234,27 @@ public class MainCommand implements Runnable {
 
         // Read file data
         String wellDataFilePath = TEMP_SUBDIRECTORY.resolve(IOUtils.genWellDataFileNameFromCollectorName(collectorType, logger)).toString();
-        Map<String, Object>[] wellData = null;
+        List<WellAssignment> wellData = null;
         if (!Objects.equals(collectorType, NONE))
             wellData = getWellDataFromFile(wellDataFilePath);
 
+        // Caps are planned once, before anything is written, the XML and the auxiliary file follow the same plan
+        CapPlan capPlan = wellData != null ? CapPlan.create(detectionsToExport, wellData, WellPlateFormat.fromCollectorName(collectorType)) : null;
+
         // Run BuildXmlCommand
         BuildXmlCommand xmlBuilder = new BuildXmlCommand(pathGeoJSON, pathXML, collectorType);
-        boolean isXmlCreationSuccessful = xmlBuilder.createLeicaXML(wellData);
+        xmlBuilder.setCoordinateTransform(exportTransform);
+        boolean isXmlCreationSuccessful = xmlBuilder.createLeicaXML(capPlan);
 
-        if (wellData != null && wellData[0].containsKey(OBJECT_CLASS_TYPE)) {
+        if (capPlan != null && wellData.stream().anyMatch(assignment -> assignment.className() != null)) {
 
-            List<Map<String, Object>> wellLabels = getWellLabelsByClass(wellData, collectorType);
-            Map<String, Integer> wellCounts = getCountsByClass(detectionsToExport);
-            Map<String, Double> wellAreas = getAreasByClass(detectionsToExport);
+            Map<String, List<String>> wellLabels = capPlan.getWellLabelsByClass();
+            Map<String, Integer> wellCounts = exportSet.getClassStatistics().getCountsByClass();
+            Map<String, Map<String, Double>> wellAreas = getAreasByClass(detectionsToExport);
 
             final String collectorName = DEFAULT_NAME + IOUtils.genWellDataFileNameFromCollectorName(collectorType, logger);
 
-            createAuxiliaryFile(wellLabels, wellCounts, wellAreas, DATA_SUBDIRECTORY.resolve(collectorName).toString());
+            createAuxiliaryFile(wellLabels, capPlan.getShapesCountByWell(), wellCounts, wellAreas, DATA_SUBDIRECTORY.resolve(collectorName).toString());
         }
 
         if (!isXmlCreationSuccessful) {
@@ -228,40 +297,37 @@ public class MainCommand implements Runnable {
     }
 
     public Set<PathClass> getAllClasses(){
-        return ClassUtils.getAllClasses(detectionsToExport);
+        return getClassStatistics().getPathClasses();
+    }
+
+    public ClassStatistics getClassStatistics(){
+        return exportSet != null ? exportSet.getClassStatistics() : new ClassStatistics(List.of());
     }
 
     public Collection<PathObject> getDetectionsToExport(){
-        return detectionsToExport;
+        return exportSet != null ? exportSet.getObjects() : List.of();
     }
 
-    private Map<String, Object>[] getWellDataFromFile(String filePath) {
+    private List<WellAssignment> getWellDataFromFile(String filePath) {
         try {
             File file = new File(filePath);
             ObjectMapper objectMapper = new ObjectMapper();
-            return objectMapper.readValue(file, new TypeReference<Map<String, Object>[]>() {
-            });
+            return List.of(objectMapper.readValue(file, WellAssignment[].class));
         } catch (IOException e) {
             logger.error("Error reading collector params from file{}", e.getMessage());
         }
         return null;
     }
 
-    private void createAuxiliaryFile(List<Map<String, Object>> wellLabels,
+    private void createAuxiliaryFile(Map<String, List<String>> wellLabels,
+                                     Map<String, Integer> shapesByWell,
                                      Map<String, Integer> wellCounts,
-                                     Map<String, Double> wellAreas,
+                                     Map<String, Map<String, Double>> wellAreas,
                                      String filePath) throws IOException {
-        // Combine labels into a single map
-        Map<String, List<String>> combinedWellLabels = new HashMap<>();
-        for (Map<String, Object> labelMap : wellLabels) {
-            labelMap.forEach((className, wells) -> {
-                combinedWellLabels.computeIfAbsent(className, k -> new ArrayList<>()).addAll((List<String>) wells);
-            });
-        }
-
         // Create a map to hold all data with headers
         Map<String, Object> structuredData = new LinkedHashMap<>(); // LinkedHashMap preserves insertion order
-        structuredData.put("Well labels by class", combinedWellLabels);
+        structuredData.put("Well labels by class", wellLabels);
+        structuredData.put("Shapes count by well", shapesByWell);
         structuredData.put("Shapes count by class", wellCounts);
         structuredData.put("Shapes area by class", wellAreas);
 
@@ -271,79 +337,121 @@ public class MainCommand implements Runnable {
     }
 
 
-    private List<Map<String, Object>> getWellLabelsByClass(Map<String, Object>[] wellData, String collectorType){
-        List<Map<String, Object>> wellDataList = new ArrayList<>();
-        for (Map<String, Object> assignment : wellData) {
-
-            String objectClass = (String) assignment.get(OBJECT_CLASS_TYPE);
-
-            if (objectClass == null || objectClass.equals(NONE))
-                continue;
-
-            if (Objects.equals(collectorType, _96_WELL_PLATE)) {
-                List<String> wellLabels = (List<String>) assignment.get("wellLabels");
-                Map<String, Object> wellDataEntry = new HashMap<>();
-                wellDataEntry.put(objectClass, wellLabels);
+    // The slide can be mounted mirrored in the LMD, the mirror is applied to the exported coordinates only
+    private AffineTransform getExportMirrorTransform(){
+        String mirror = mainPane.getExportMirror();
+        if (mirror == null || mirror.equals(ExportMirror.NONE))
+            return null;
+        ImageServer<BufferedImage> server = qupath.getImageData().getServer();
+        return ObjectUtils.createMirrorTransform(mirror.equals(ExportMirror.HORIZONTAL), mirror.equals(ExportMirror.VERTICAL),
+                server.getWidth(), server.getHeight());
+    }
 
-                wellDataList.add(wellDataEntry);
-            }
-            else {
-                List<String> wellLabels = new ArrayList<>();
-                String wellLabel = (String) assignment.get("wellLabel");
-                wellLabels.add(wellLabel);
-                Map<String, Object> wellDataEntry = new HashMap<>();
-                wellDataEntry.put(objectClass, wellLabels);
-
-                wellDataList.add(wellDataEntry);
+    /**
+     * Fits the transform from image pixels to the stage positions of the 3 calibration points entered by the user.
+     * Three points always fit exactly, so the fitted scale and aspect are also checked against the image's pixel size,
+     * a mistyped or swapped stage position shows there before the session.
+     * @return the transform, or null if the input is invalid or the user declined a suspicious calibration
+     */
+    private AffineTransform getStageTransform(){
+        Map<String, Point2> imagePoints = ObjectUtils.getCalibrationPointsByName(qupath.getImageData().getHierarchy().getAnnotationObjects());
+        String input = Dialogs.showInputDialog("Stage coordinates",
+                "Stage X and Y of " + CP1 + ", " + CP2 + " and " + CP3 + " (6 numbers, in microns):", stageCalibrationPoints.get());
+        if (input == null)
+            return null;
+        String[] values = input.trim().split("[\\s,;]+");
+        double[] stage = new double[6];
+        try {
+            if (values.length != 6)
+                throw new NumberFormatException();
+            for (int i = 0; i < 6; i++)
+                stage[i] = Double.parseDouble(values[i]);
+        } catch (NumberFormatException e) {
+            Dialogs.showErrorNotification("Invalid stage coordinates", "Please enter 6 numbers separated by spaces or commas.");
+            return null;
+        }
+        stageCalibrationPoints.set(input.trim());
+
+        double[] image = new double[6];
+        String[] names = {CP1, CP2, CP3};
+        for (int i = 0; i < names.length; i++) {
+            Point2 point = imagePoints.get(names[i]);
+            if (point == null) {
+                Dialogs.showErrorNotification("Missing Calibration Points",
+                        "Please add 3 'Point' annotations, named " + CP1 + ", " + CP2 + " and " + CP3 + ".");
+                return null;
             }
+            image[i * 2] = point.getX();
+            image[i * 2 + 1] = point.getY();
+        }
+        AffineFit fit;
+        try {
+            fit = AffineFit.fit(image, stage);
+        } catch (IllegalArgumentException e) {
+            Dialogs.showErrorNotification("Invalid Calibration Points", e.getMessage());
+            return null;
         }
-        return wellDataList;
-    }
 
-    private Map<String, Integer> getCountsByClass(Collection<PathObject> objects){
-        return ClassUtils.getObjectsCountByClass(objects);
+        AffineTransform transform = fit.getTransform();
+        String report = String.format("Residuals: max %.2f, RMS %.2f microns. Fitted scale: %.4f x %.4f microns/px.",
+                fit.getMaxResidual(), fit.getRmsResidual(), fit.getScaleX(), fit.getScaleY());
+        PixelCalibration calibration = qupath.getImageData().getServer().getPixelCalibration();
+        double pixelSize = Double.NaN;
+        if (calibration.hasPixelSizeMicrons()) {
+            pixelSize = calibration.getAveragedPixelSizeMicrons();
+            report += String.format(" Image pixel size: %.4f microns.", pixelSize);
+        }
+        boolean suspicious = fit.isScaleSuspicious(pixelSize);
+        logger.info("Stage calibration: {}", report);
+        if (suspicious && !Dialogs.showConfirmDialog("Check the calibration",
+                report + "\nThe fitted scale doesn't match the image, a stage position may be mistyped. Export anyway?"))
+            return null;
+        if (!suspicious)
+            Dialogs.showInfoNotification("Stage calibration", report);
+        return transform;
     }
 
-    private Map<String, Double> getAreasByClass(Collection<PathObject> objects){
-        return ClassUtils.getObjectsAreaByClass(objects);
+    // Nominal area and the area actually collected once the laser's kerf is burnt away
+    private Map<String, Map<String, Double>> getAreasByClass(Collection<PathObject> objects){
+        PixelCalibration calibration = qupath.getImageData().getServer().getPixelCalibration();
+        double kerfPixels = ObjectUtils.micronsToPixels(MoreOptionsCommand.laserApertureMicronsProperty().get(), calibration);
+        return ClassUtils.getObjectsNominalAndEffectiveAreaByClass(objects, kerfPixels);
     }
 
     // Function that optimizes shapes order and thus minimizes laser's travel, only detections correspond to shapes,
     // annotations are either junk or calibration points filtered and used later on, respectively.
-    private void optimizeDetectionsOrder(Collection<PathObject> detections){
-        if (detections == null || detections.isEmpty()) {
-            return;
+    private List<PathObject> optimizeDetectionsOrder(List<PathObject> detections){
+        if (detections.isEmpty()) {
+            return detections;
         }
 
-        List<PathObject> orderedDetections = new ArrayList<>(detections);
-        List<PathObject> unvisitedDetections = new ArrayList<>(detections);
+        // Nearest neighbours are looked up in a copy of the detections' centroids from the image's spatial index,
+        // visited detections are removed from it so every lookup only sees the unvisited ones
+        SpatialIndexService spatialIndex = SpatialIndexService.getInstance(qupath.getImageData());
+        RemovableCentroidIndex unvisitedDetections = spatialIndex.createRemovableCentroidIndex(detections);
+        List<PathObject> orderedDetections = new ArrayList<>(detections.size());
 
         // Start with an arbitrary detection object
-        PathObject currentObject = unvisitedDetections.remove(0);
-        orderedDetections.set(0, currentObject);
+        PathObject currentObject = detections.get(0);
+        unvisitedDetections.remove(currentObject);
+        orderedDetections.add(currentObject);
 
         // Greedy nearest-neighbor approach
-        for (int i = 1; i < detections.size(); i++) {
-            PathObject nearestObject = findNearestObject(currentObject, unvisitedDetections);
-            orderedDetections.set(i, nearestObject);
+        while (!unvisitedDetections.isEmpty()) {
+            ROI roi = currentObject.getROI();
+            PathObject nearestObject = unvisitedDetections.getNearest(roi.getCentroidX(), roi.getCentroidY());
+            orderedDetections.add(nearestObject);
             unvisitedDetections.remove(nearestObject);
             currentObject = nearestObject;
         }
-
-        // Update the original collection
-        detections.clear();
-        detections.addAll(orderedDetections);
-    }
-
-    private PathObject findNearestObject(PathObject currentObject, List<PathObject> unvisitedObjects) {
-        return Collections.min(unvisitedObjects, Comparator.comparingDouble(obj ->
-                distance(currentObject.getROI().getCentroidX(), currentObject.getROI().getCentroidY(),
-                        obj.getROI().getCentroidX(), obj.getROI().getCentroidY())
-        ));
-    }
-
-    private double distance(double x1, double y1, double x2, double y2) {
-        return Math.sqrt(Math.pow(x2 - x1, 2) + Math.pow(y2 - y1, 2));
+        // Detections which are not in the hierarchy were never indexed, they keep their order at the end
+        Set<PathObject> orderedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        orderedSet.addAll(orderedDetections);
+        for (PathObject detection : detections) {
+            if (!orderedSet.contains(detection))
+                orderedDetections.add(detection);
+        }
+        return orderedDetections;
     }
 
 }
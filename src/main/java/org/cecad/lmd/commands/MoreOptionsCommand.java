@@ -1,21 +1,42 @@
 package org.cecad.lmd.commands;
 
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleDoubleProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+import javafx.application.Platform;
 import javafx.scene.Scene;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.layout.Pane;
 import javafx.stage.Stage;
+import org.cecad.lmd.common.AffineFit;
+import org.cecad.lmd.common.ClassIndex;
 import org.cecad.lmd.common.ClassUtils;
 import org.cecad.lmd.common.ObjectUtils;
+import org.cecad.lmd.common.OperationMonitor;
+import org.cecad.lmd.common.OverlapResolver;
+import org.cecad.lmd.common.SafeRadiusAnalysis;
+import org.cecad.lmd.common.SimplificationUtils;
+import org.cecad.lmd.common.SpatialIndexService;
+import org.cecad.lmd.common.UndoStack;
+import org.cecad.lmd.common.VoronoiExpansion;
+import org.cecad.lmd.ui.ExpansionPreviewOverlay;
+import org.cecad.lmd.ui.KerfOverlay;
 import org.cecad.lmd.ui.MoreOptionsPane;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.Polygon;
-import org.locationtech.jts.operation.buffer.BufferOp;
-import org.locationtech.jts.operation.buffer.BufferParameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.fx.dialogs.Dialogs;
 import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.gui.tools.GuiTools;
-import qupath.lib.gui.viewer.OverlayOptions;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.geom.Point2;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerMetadata;
@@ -28,10 +49,10 @@ import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.objects.hierarchy.events.PathObjectSelectionModel;
 import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.regions.ImagePlane;
 import qupath.lib.roi.GeometryTools;
-import qupath.lib.roi.PolygonROI;
-import qupath.lib.roi.ShapeSimplifier;
 import qupath.lib.roi.interfaces.ROI;
 
 import static org.cecad.lmd.common.Constants.EnlargeOptions.*;
@@ -39,8 +60,14 @@ import static org.cecad.lmd.common.Constants.EnlargeOptions.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.stream.IntStream;
 
 public class MoreOptionsCommand implements Runnable {
     private final static Logger logger = LoggerFactory.getLogger(SetCollectorCommand.class);
@@ -48,12 +75,45 @@ public class MoreOptionsCommand implements Runnable {
     private Stage stage;
     private final QuPathGUI qupath;
     private final PathObjectHierarchy hierarchy;
-    Collection<PathObject> oldObjects = null;
-    Collection<PathObject> expandedDetections = null;
+    private final ImageData<BufferedImage> imageData;
+    private static final IntegerProperty undoMemoryLimitMB = PathPrefs.createPersistentPreference("qucut.undoMemoryLimitMB", 256);
+    private static final DoubleProperty laserApertureMicrons = PathPrefs.createPersistentPreference("qucut.laserApertureMicrons",
+            PathPrefs.detectionStrokeThicknessProperty().getValue().doubleValue());
+    private final UndoStack undoStack = new UndoStack(undoMemoryLimitMB.get() * 1024L * 1024L);
+    private final BooleanProperty expansionPreview = new SimpleBooleanProperty(false);
+    private final IntegerProperty previewConflictCount = new SimpleIntegerProperty(0);
+    private ExpansionPreviewOverlay previewOverlay = null;
+    private KerfOverlay kerfOverlay = null;
+    private double previewRadius = 1;
+    private double previewMinGap = 0;
+    private boolean previewVoronoi = false;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "qucut-more-options");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final BooleanProperty operationRunning = new SimpleBooleanProperty(false);
+    private final DoubleProperty operationProgress = new SimpleDoubleProperty(0);
+    private final StringProperty operationStatus = new SimpleStringProperty("");
+    private volatile OperationMonitor currentMonitor = null;
+
+    // Computing part of an operation, returns what has to be done on the FX thread with the result
+    @FunctionalInterface
+    private interface Operation {
+        Runnable compute(OperationMonitor monitor) throws Exception;
+    }
 
     public MoreOptionsCommand(QuPathGUI qupath) {
         this.qupath = qupath;
         this.hierarchy = qupath.getImageData().getHierarchy();
+        this.imageData = qupath.getImageData();
+        undoMemoryLimitMB.addListener((observable, oldValue, newValue) -> undoStack.setMemoryCapBytes(newValue.longValue() * 1024L * 1024L));
+        expansionPreview.addListener((observable, oldValue, newValue) -> {
+            if (newValue)
+                startExpansionPreview();
+            else
+                stopExpansionPreview();
+        });
     }
 
     @Override
@@ -86,20 +146,64 @@ public class MoreOptionsCommand implements Runnable {
     }
 
     private void hideStage() {
+        expansionPreview.set(false);
         stage.hide();
     }
 
-    public void makeSelectedDetectionsBigger(int radius, String sameClass, String diffClass){
+    private void startExpansionPreview(){
+        if (previewOverlay != null || qupath.getViewer() == null)
+            return;
+        previewOverlay = new ExpansionPreviewOverlay(qupath.getViewer(), previewRadius, previewMinGap, !previewVoronoi);
+        previewConflictCount.bind(previewOverlay.conflictCountProperty());
+        previewOverlay.attach();
+    }
+
+    private void stopExpansionPreview(){
+        if (previewOverlay == null)
+            return;
+        previewConflictCount.unbind();
+        previewConflictCount.set(0);
+        previewOverlay.detach();
+        previewOverlay = null;
+    }
+
+    public void setPreviewRadius(double radius){
+        previewRadius = radius;
+        if (previewOverlay != null)
+            previewOverlay.setRadiusMicrons(radius);
+    }
+
+    // Same gap as 'Expand' is given, 0 when it isn't kept
+    public void setPreviewMinGap(double minGapMicrons){
+        previewMinGap = minGapMicrons;
+        if (previewOverlay != null)
+            previewOverlay.setMinGapMicrons(minGapMicrons);
+    }
+
+    // Voronoi clipping can't leave conflicts, the preview then only shows the outlines
+    public void setPreviewVoronoi(boolean voronoi){
+        previewVoronoi = voronoi;
+        if (previewOverlay != null)
+            previewOverlay.setCountConflicts(!voronoi);
+    }
+
+    public BooleanProperty expansionPreviewProperty(){
+        return expansionPreview;
+    }
+
+    public IntegerProperty previewConflictCountProperty(){
+        return previewConflictCount;
+    }
+
+    public void makeSelectedDetectionsBigger(int radius, String sameClass, String diffClass, double minGapMicrons){
         if (isNoSelection(hierarchy.getSelectionModel(), true))
             return;
 
-        Collection<PathObject> selectedDetections = ObjectUtils.filterOutAnnotations(hierarchy.getSelectionModel().getSelectedObjects());
+        List<PathObject> selectedDetections = new ArrayList<>(ObjectUtils.filterOutAnnotations(hierarchy.getSelectionModel().getSelectedObjects()));
 
         if (!wereSelectedObjectsDetections(selectedDetections))
             return;
 
-        oldObjects = selectedDetections;
-
         int selectedDetectionsNumber = selectedDetections.size();
         showEnlargingNotification(selectedDetectionsNumber);
 
@@ -124,200 +228,354 @@ public class MoreOptionsCommand implements Runnable {
 
         }
 
-        long startTime = System.nanoTime();
-
-        double radiusPixels;
         PixelCalibration calibration = qupath.getImageData().getServer().getPixelCalibration();
-        if (calibration.hasPixelSizeMicrons())
-            radiusPixels = radius / calibration.getAveragedPixelSizeMicrons();
-        else
-            radiusPixels = radius;
+        double radiusPixels = ObjectUtils.micronsToPixels(radius, calibration);
+        double gapPixels = ObjectUtils.micronsToPixels(minGapMicrons, calibration);
+        SpatialIndexService spatialIndex = getSpatialIndex();
+
+        runOperation("Expand", monitor -> {
+            PathObject[] expanded = new PathObject[selectedDetections.size()];
+            monitor.setTotal(expanded.length);
+            IntStream.range(0, expanded.length).parallel().forEach(i -> {
+                PathObject pathObject = selectedDetections.get(i);
+                ROI roi = pathObject.getROI();
+                Geometry geometry = ObjectUtils.expandGeometry(roi.getGeometry(), radiusPixels);
+                PathObject detection = PathObjects.createDetectionObject(GeometryTools.geometryToROI(geometry, ImagePlane.getPlane(roi)), pathObject.getPathClass());
+                detection.setName(pathObject.getName());
+                detection.setColor(pathObject.getColor());
+                expanded[i] = detection;
+                monitor.worked(1);
+            });
 
-        Collection<PathObject> newObjects = new ArrayList<>();
-
-        for (PathObject pathObject : selectedDetections) {
-
-            ROI roi = pathObject.getROI();
-            Geometry geometry = roi.getGeometry();
-            Geometry geometry2 = BufferOp.bufferOp(geometry, radiusPixels, BufferParameters.DEFAULT_QUADRANT_SEGMENTS);
-            ROI roi2 = GeometryTools.geometryToROI(geometry2, ImagePlane.getPlane(roi));
-            PathObject detection2 = PathObjects.createDetectionObject(roi2, pathObject.getPathClass());
-            detection2.setName(pathObject.getName());
-            detection2.setColor(pathObject.getColor());
-            newObjects.add(detection2);
-        }
-
-        Collection<PathObject> enlargedWithoutBackground = newObjects;
-
-        hierarchy.removeObjects(selectedDetections, false);
-        hierarchy.getSelectionModel().clearSelection();
-
-        try {
             // Steps for processing overlapping objects:
 
             // 1. Add 'background', i.e. already existing in hierarchy, not selected, detection objects to newObjects.
-            newObjects = addOverlappingBackgroundObjects(hierarchy, newObjects, radiusPixels);
+            Collection<PathObject> overlappingBackgroundObjects = getOverlappingBackgroundObjects(spatialIndex, Arrays.asList(expanded),
+                    selectedDetections, radiusPixels, gapPixels, monitor);
+            Collection<PathObject> newObjects = new ArrayList<>(Arrays.asList(expanded));
+            newObjects.addAll(overlappingBackgroundObjects);
+
+            UndoStack.Step undoStep = new UndoStack.Step("Expand", hierarchy);
+            undoStep.recordRemoved(selectedDetections);
+            undoStep.recordRemoved(overlappingBackgroundObjects);
 
-                // Just update the oldObjects for Undo action
-            Collection<PathObject> overlappingBackgroundObjects = getOverlappingBackground(newObjects, enlargedWithoutBackground);
-            oldObjects.addAll(overlappingBackgroundObjects);
+            // Classes are interned once, sorting and overlap resolution then only compare int IDs and ranks
+            ClassIndex classIndex = ClassIndex.fromObjects(newObjects);
+            int[] priorityRanks = classIndex.createRankTable(priorityRanking);
 
             // 2. Check if differentClassesChoice is not 'Exclude Both' and if !all objects have same class,
             // if both are true -> sort newObjects
             if (!ClassUtils.areAllObjectsOfSameClass(newObjects) && !Objects.equals(diffClass, EXCLUDE_BOTH)) {
-                newObjects = ObjectUtils.sortObjectsByPriority(newObjects, priorityRanking);
+                newObjects = ObjectUtils.sortObjectsByPriority(newObjects, classIndex, priorityRanks);
             }
 
             // 3. Process overlapping objects: merge, exclude both or exclude one of the two overlapping depending on their class
-            Collection<PathObject> objectsToAddToHierarchy = new ArrayList<>();
-            while (!newObjects.isEmpty()) {
-                newObjects = processOverlappingObjects(newObjects, objectsToAddToHierarchy, mergeSameClass, priorityRanking);
+            // With a minimum gap, shapes closer than the gap (e.g. the laser aperture) are treated as overlapping
+            boolean usePriority = !priorityRanking.isEmpty();
+            OverlapResolver overlapResolver = new OverlapResolver(mergeSameClass, classIndex, usePriority ? priorityRanks : null, gapPixels);
+            Collection<PathObject> objectsToAddToHierarchy = overlapResolver.resolve(newObjects, monitor);
+            undoStep.recordAdded(objectsToAddToHierarchy);
+
+            return () -> {
+                // Background objects were collected on the worker, one deleted meanwhile would be brought back by the resolved objects
+                checkStillInHierarchy(selectedDetections);
+                checkStillInHierarchy(overlappingBackgroundObjects);
+                hierarchy.getSelectionModel().clearSelection();
+                hierarchy.removeObjects(selectedDetections, false);
+                hierarchy.removeObjects(overlappingBackgroundObjects, true);
+                hierarchy.addObjects(objectsToAddToHierarchy);
+                undoStack.push(undoStep);
+                String gapConflictsMessage = gapPixels > 0 ? " " + overlapResolver.getGapConflictsResolved() + " gap conflicts resolved." : "";
+                Dialogs.showInfoNotification("Operation Successful", selectedDetectionsNumber + " objects processed." + gapConflictsMessage);
+            };
+        });
+    }
+
+    public void expandSelectedDetectionsWithinVoronoi(int radius){
+        if (isNoSelection(hierarchy.getSelectionModel(), true))
+            return;
+
+        List<PathObject> selectedDetections = new ArrayList<>(ObjectUtils.filterOutAnnotations(hierarchy.getSelectionModel().getSelectedObjects()));
+
+        if (!wereSelectedObjectsDetections(selectedDetections))
+            return;
+
+        showEnlargingNotification(selectedDetections.size());
+
+        PixelCalibration calibration = qupath.getImageData().getServer().getPixelCalibration();
+        double radiusPixels = ObjectUtils.micronsToPixels(radius, calibration);
+
+        runOperation("Expand", monitor -> {
+            // Not selected detections around the selection are not expanded, but the selected ones must not grow into them
+            // Two objects expanding towards each other meet within twice the radius
+            Collection<PathObject> backgroundDetections = getDetectionsAround(selectedDetections, radiusPixels * 2);
+            backgroundDetections.removeAll(new HashSet<>(selectedDetections));
+
+            Geometry[] expandedGeometries = VoronoiExpansion.expand(selectedDetections, backgroundDetections, radiusPixels, monitor);
+
+            Collection<PathObject> newObjects = new ArrayList<>(selectedDetections.size());
+            for (int i = 0; i < selectedDetections.size(); i++) {
+                PathObject pathObject = selectedDetections.get(i);
+                ROI roi = GeometryTools.geometryToROI(expandedGeometries[i], ImagePlane.getPlane(pathObject.getROI()));
+                PathObject detection = PathObjects.createDetectionObject(roi, pathObject.getPathClass());
+                detection.setName(pathObject.getName());
+                detection.setColor(pathObject.getColor());
+                newObjects.add(detection);
             }
 
-            hierarchy.addObjects(objectsToAddToHierarchy);
-            expandedDetections = objectsToAddToHierarchy;
-            long endTime = System.nanoTime();
-            long duration = endTime - startTime;
-            double seconds = (double) duration / 1_000_000_000.0;
-            Dialogs.showInfoNotification("Operation Successful", selectedDetectionsNumber + " objects processed in " + seconds + " seconds.");
-        } catch (Throwable t){
-            hierarchy.addObjects(selectedDetections);
-            logger.error("Error processing overlapping objects: {}", t.getMessage());
-            Dialogs.showErrorNotification("Operation Failed", "Expanding objects failed. Please, try again.");
-        }
+            UndoStack.Step undoStep = new UndoStack.Step("Expand", hierarchy);
+            undoStep.recordRemoved(selectedDetections);
+            undoStep.recordAdded(newObjects);
+
+            return () -> {
+                checkStillInHierarchy(selectedDetections);
+                hierarchy.getSelectionModel().clearSelection();
+                hierarchy.removeObjects(selectedDetections, false);
+                hierarchy.addObjects(newObjects);
+                undoStack.push(undoStep);
+                Dialogs.showInfoNotification("Operation Successful", selectedDetections.size() + " objects processed.");
+            };
+        });
+    }
+
+    public void computeSafeExpansionRadii(double minGapMicrons){
+        if (isNoSelection(hierarchy.getSelectionModel(), true))
+            return;
+
+        List<PathObject> selectedDetections = new ArrayList<>(ObjectUtils.filterOutAnnotations(hierarchy.getSelectionModel().getSelectedObjects()));
+        if (!wereSelectedObjectsDetections(selectedDetections))
+            return;
+
+        PixelCalibration calibration = qupath.getImageData().getServer().getPixelCalibration();
+        double gapPixels = ObjectUtils.micronsToPixels(minGapMicrons, calibration);
+
+        runOperation("Compute safe radius", monitor -> {
+            double[] safeRadii = computeSafeRadii(selectedDetections, Double.POSITIVE_INFINITY, gapPixels, monitor);
+            return () -> {
+                double minSafeRadius = Double.POSITIVE_INFINITY;
+                for (int i = 0; i < safeRadii.length; i++) {
+                    // NaN means nothing is within reach, i.e. the radius is not limited
+                    double safeRadiusMicrons = Double.isInfinite(safeRadii[i]) ? Double.NaN : ObjectUtils.pixelsToMicrons(safeRadii[i], calibration);
+                    selectedDetections.get(i).getMeasurementList().put(SafeRadiusAnalysis.MEASUREMENT_NAME, safeRadiusMicrons);
+                    minSafeRadius = Math.min(minSafeRadius, safeRadii[i]);
+                }
+                hierarchy.fireObjectMeasurementsChangedEvent(this, selectedDetections);
+
+                String minMessage = Double.isInfinite(minSafeRadius) ? "not limited" :
+                        String.format("%.2f microns", ObjectUtils.pixelsToMicrons(minSafeRadius, calibration));
+                Dialogs.showInfoNotification("Safe radius computed", "'" + SafeRadiusAnalysis.MEASUREMENT_NAME + "' added to " +
+                        selectedDetections.size() + " detections. Smallest safe radius: " + minMessage + ".");
+            };
+        });
     }
 
-    public void undoEnlargement(){
-        if (expandedDetections == null || oldObjects == null)
+    public void adaptiveExpandSelectedDetections(int radius, double minGapMicrons){
+        if (isNoSelection(hierarchy.getSelectionModel(), true))
             return;
-        hierarchy.removeObjects(expandedDetections, false);
-        hierarchy.addObjects(oldObjects);
-        expandedDetections = null;
-        oldObjects = null;
+
+        List<PathObject> selectedDetections = new ArrayList<>(ObjectUtils.filterOutAnnotations(hierarchy.getSelectionModel().getSelectedObjects()));
+        if (!wereSelectedObjectsDetections(selectedDetections))
+            return;
+
+        PixelCalibration calibration = qupath.getImageData().getServer().getPixelCalibration();
+        double radiusPixels = ObjectUtils.micronsToPixels(radius, calibration);
+        double gapPixels = ObjectUtils.micronsToPixels(minGapMicrons, calibration);
+
+        runOperation("Adaptive expand", monitor -> {
+            double[] safeRadii = computeSafeRadii(selectedDetections, radiusPixels, gapPixels, monitor);
+
+            PathObject[] newObjects = new PathObject[selectedDetections.size()];
+            monitor.setTotal(newObjects.length);
+            IntStream.range(0, newObjects.length).parallel().forEach(i -> {
+                PathObject pathObject = selectedDetections.get(i);
+                ROI roi = pathObject.getROI();
+                double objectRadius = Math.min(radiusPixels, safeRadii[i]);
+                Geometry geometry = objectRadius > 0 ? ObjectUtils.expandGeometry(roi.getGeometry(), objectRadius) : roi.getGeometry();
+                PathObject detection = PathObjects.createDetectionObject(GeometryTools.geometryToROI(geometry, ImagePlane.getPlane(roi)), pathObject.getPathClass());
+                detection.setName(pathObject.getName());
+                detection.setColor(pathObject.getColor());
+                newObjects[i] = detection;
+                monitor.worked(1);
+            });
+            List<PathObject> expandedDetections = Arrays.asList(newObjects);
+
+            int limitedCount = 0;
+            for (double safeRadius : safeRadii) {
+                if (safeRadius < radiusPixels)
+                    limitedCount++;
+            }
+
+            UndoStack.Step undoStep = new UndoStack.Step("Adaptive expand", hierarchy);
+            undoStep.recordRemoved(selectedDetections);
+            undoStep.recordAdded(expandedDetections);
+
+            int limited = limitedCount;
+            return () -> {
+                checkStillInHierarchy(selectedDetections);
+                hierarchy.getSelectionModel().clearSelection();
+                hierarchy.removeObjects(selectedDetections, false);
+                hierarchy.addObjects(expandedDetections);
+                undoStack.push(undoStep);
+                Dialogs.showInfoNotification("Operation Successful", selectedDetections.size() + " objects processed, " +
+                        limited + " of them expanded less than requested to keep the gap to their neighbours.");
+            };
+        });
     }
 
-    private Collection<PathObject> getOverlappingBackground(Collection<PathObject> allObjects, Collection<PathObject> enlargedObjects) {
-        Collection<PathObject> backgroundObjects = new HashSet<>(allObjects);
-        backgroundObjects.removeAll(enlargedObjects);
-        return backgroundObjects;
+    // radiusPixels is the largest radius that will be used, infinite when the safe radius itself is wanted
+    private double[] computeSafeRadii(List<PathObject> selectedDetections, double radiusPixels, double gapPixels, OperationMonitor monitor){
+        // A detection which stays as it is limits the radius only if it is closer than radius + gap, whatever lies beyond can be left out
+        Collection<PathObject> backgroundDetections = Double.isInfinite(radiusPixels) ?
+                new ArrayList<>(hierarchy.getDetectionObjects()) : getDetectionsAround(selectedDetections, radiusPixels + gapPixels);
+        backgroundDetections.removeAll(new HashSet<>(selectedDetections));
+        return SafeRadiusAnalysis.computeSafeRadii(selectedDetections, backgroundDetections, gapPixels, monitor);
     }
 
-    private static Collection<PathObject> processOverlappingObjects(Collection<PathObject> newObjects,
-                                                                    Collection<PathObject> objectsToAddToHierarchy,
-                                                                    boolean mergeSameClass,
-                                                                    List<String> priorityRanking){
-        Collection<PathObject> remainingObjects = new ArrayList<>(newObjects);
-        Collection<PathObject> objectsToMerge = new ArrayList<>();
-        Collection<PathObject> objectsToRemoveFromProcessed = new ArrayList<>();
-        Collection<PathObject> objectsToAddToProcessed = new ArrayList<>();
-        boolean isOverlapping = false;
-        boolean isSameClass = true;
-
-        for (PathObject object : newObjects){
-            PathClass objectClass = object.getPathClass();
-            Polygon polygon = ObjectUtils.convertRoiToGeometry(object);
-            remainingObjects.remove(object); // remove from processed now so there will be no intersection with itself check
-
-            for (PathObject otherObject : remainingObjects){
-                PathClass otherObjectClass = otherObject.getPathClass();
-                Polygon otherPolygon = ObjectUtils.convertRoiToGeometry(otherObject);
-                if (polygon.intersects(otherPolygon)){
-                    isOverlapping = true;
-                    if (objectClass == otherObjectClass){
-                        if (mergeSameClass) {
-                            objectsToMerge.add(object);
-                            objectsToMerge.add(otherObject);
-                        }
-                        else{
-                            if (new Random().nextBoolean()) {
-                                objectsToRemoveFromProcessed.add(object);
-                                objectsToAddToProcessed.add(otherObject);
-                            } else {
-                                objectsToRemoveFromProcessed.add(otherObject);
-                                objectsToAddToProcessed.add(object);
-                            }
-                        }
-                        break;
-                    }
-                    else{
-                        isSameClass = false;
-                        if (priorityRanking.isEmpty()){
-                            objectsToRemoveFromProcessed.add(object);
-                            objectsToRemoveFromProcessed.add(otherObject);
-                            break;
-                        }
-                        else{
-                            int objectIndex = priorityRanking.indexOf(objectClass != null ? objectClass.getName() : null);
-                            int otherObjectIndex = priorityRanking.indexOf(otherObjectClass != null ? otherObjectClass.getName() : null);
-                            // Since when not in the list -1 is returned, we make sure it doesn't become the highest priority
-                            objectIndex = objectIndex != -1 ? objectIndex : Integer.MAX_VALUE;
-                            otherObjectIndex = otherObjectIndex != -1 ? otherObjectIndex : Integer.MAX_VALUE;
-
-                            if (objectIndex < otherObjectIndex) { // lower index -> higher priority
-                                objectsToRemoveFromProcessed.add(otherObject); // deleting other, non-priority, intersecting object
-                                /*
-                                This is the only case when we don't break the loop, after it is finished,
-                                we are sure the object doesn't intersect different class object,
-                                still may intersect same class object though, so we add it back to processed.
-                                */
-                                if (!objectsToAddToProcessed.contains(object)) {
-                                    objectsToAddToProcessed.add(object);
-                                }
-                            }
-                            else if (otherObjectIndex < objectIndex){
-                                /*
-                                Here the object is non-priority, and it intersects priority otherObject (assuming two classes),
-                                the object has been removed from remaining objects before the loop started, so we don't really do anything here.
-                                I do not really understand why this actually ever happens as the collection should be sorted and all the
-                                priority objects should delete other non-priority intersecting them objects. But it does happen sometimes for some reason.
-                                */
-                                break;
-                            }
-                        }
-                    }
-                }
-            }
-            if (!isOverlapping) {
-                objectsToAddToHierarchy.add(object);
-                break;
-            }
+    // Looked up on each use, the service is dropped when no viewer shows the image anymore and rebuilt when it is reopened.
+    // A service made here for an image closed since is only kept as long as this window holds the image data (weak keys)
+    private SpatialIndexService getSpatialIndex() {
+        return SpatialIndexService.getInstance(imageData);
+    }
 
-            if (isSameClass) {
-                if (mergeSameClass) {
-                    remainingObjects.removeAll(objectsToMerge);
-                    remainingObjects.add(ObjectUtils.mergeObjects(objectsToMerge, objectClass));
-                }
-                else {
-                    remainingObjects.removeAll(objectsToRemoveFromProcessed);
-                    remainingObjects.addAll(objectsToAddToProcessed);
-                }
-            } else {
-                remainingObjects.removeAll(objectsToRemoveFromProcessed);
-                remainingObjects.addAll(objectsToAddToProcessed);
-            }
-            break;
+    private Collection<PathObject> getDetectionsAround(Collection<PathObject> objects, double marginPixels){
+        SpatialIndexService spatialIndex = getSpatialIndex();
+        Set<PathObject> detectionsAround = new LinkedHashSet<>();
+        for (PathObject object : objects) {
+            ROI roi = object.getROI();
+            Envelope envelope = new Envelope(roi.getBoundsX(), roi.getBoundsX() + roi.getBoundsWidth(),
+                    roi.getBoundsY(), roi.getBoundsY() + roi.getBoundsHeight());
+            envelope.expandBy(marginPixels);
+            detectionsAround.addAll(spatialIndex.getDetectionsInEnvelope(envelope, ImagePlane.getPlane(roi)));
         }
-        return remainingObjects;
+        return new ArrayList<>(detectionsAround);
     }
 
-    private static Collection<PathObject> addOverlappingBackgroundObjects(PathObjectHierarchy hierarchy, final Collection<PathObject> objects, double radius){
-        Collection<PathObject> enhancedObjects = new ArrayList<>(objects);
+    public void undoLastOperation(){
+        UndoStack.Step step = undoStack.pop();
+        if (step == null) {
+            Dialogs.showInfoNotification("Nothing to undo", "There are no operations left to undo.");
+            return;
+        }
+        ImageData<BufferedImage> imageData = qupath.getImageData();
+        PathObjectHierarchy stepHierarchy = step.getHierarchy();
+        if (step.isStale() || (stepHierarchy != null && (imageData == null || stepHierarchy != imageData.getHierarchy()))) {
+            // The step was recorded on an image which is not open anymore, so is the rest of the history
+            undoStack.clear();
+            Dialogs.showWarningNotification("Undo not possible", "The image the last operation was performed on is no longer open.");
+            return;
+        }
+        step.restore();
+        Dialogs.showInfoNotification("Undo", step.getOperationName() + " undone (" + undoStack.size() + " more step(s) available).");
+    }
+
+    public static IntegerProperty undoMemoryLimitMBProperty(){
+        return undoMemoryLimitMB;
+    }
+
+    // Also used at export time, for the collected area
+    public static DoubleProperty laserApertureMicronsProperty(){
+        return laserApertureMicrons;
+    }
+
+    // Detections of the hierarchy close to the expanded objects, the expanded objects' originals excluded
+    private static Collection<PathObject> getOverlappingBackgroundObjects(SpatialIndexService spatialIndex, final Collection<PathObject> objects,
+                                                                          Collection<PathObject> originals, double radius, double gap,
+                                                                          OperationMonitor monitor){
+        Set<PathObject> excluded = Collections.newSetFromMap(new IdentityHashMap<>());
+        excluded.addAll(originals);
+        Set<PathObject> backgroundObjects = new LinkedHashSet<>();
+        monitor.setTotal(objects.size());
         for (PathObject object : objects){
             ROI roi = object.getROI();
-            Geometry geometry = roi.getGeometry();
-            Geometry geometry2 = BufferOp.bufferOp(geometry, radius*10, BufferParameters.DEFAULT_QUADRANT_SEGMENTS);
-            ROI roi2 = GeometryTools.geometryToROI(geometry2, ImagePlane.getPlane(roi));
-
-            Collection<PathObject> objectsInROI = hierarchy.getObjectsForROI(null, roi2);
-            objectsInROI = ObjectUtils.filterOutAnnotations(objectsInROI); // remove all annotations from the collection
-            for (PathObject roiObject : objectsInROI){
-                if (!enhancedObjects.contains(roiObject)/*&& !roiObject.isAnnotation()*/){
-                    enhancedObjects.add(roiObject);
-                }
+            for (PathObject background : spatialIndex.getDetectionsWithinDistance(roi.getGeometry(), radius*10 + gap, ImagePlane.getPlane(roi))) {
+                if (!excluded.contains(background))
+                    backgroundObjects.add(background);
             }
-            hierarchy.removeObjects(objectsInROI, true);
+            monitor.worked(1);
         }
-        return enhancedObjects;
+        return backgroundObjects;
+    }
+
+    // The hierarchy stays editable while an operation computes, its result only replaces objects which are still there
+    private static void checkStillInHierarchy(Collection<PathObject> objects){
+        for (PathObject object : objects) {
+            if (object.getParent() == null)
+                throw new IllegalStateException("Some of the processed objects were removed in the meantime, nothing was changed.");
+        }
+    }
+
+    /**
+     * Runs the computing part of an operation on the background executor, then its commit (hierarchy changes, notifications)
+     * on the FX thread, unless the operation was cancelled meanwhile. One operation runs at a time.
+     */
+    private void runOperation(String operationName, Operation operation){
+        if (operationRunning.get()) {
+            Dialogs.showWarningNotification("Operation in progress", "Please wait for the running operation to finish or cancel it.");
+            return;
+        }
+        OperationMonitor monitor = new OperationMonitor(progress -> Platform.runLater(() -> {
+            if (operationRunning.get())
+                operationProgress.set(progress);
+        }));
+        currentMonitor = monitor;
+        operationRunning.set(true);
+        operationProgress.set(ProgressIndicator.INDETERMINATE_PROGRESS);
+        operationStatus.set(operationName + "...");
+        long startTime = System.nanoTime();
+        executor.execute(() -> {
+            Runnable commit = null;
+            Throwable error = null;
+            try {
+                commit = operation.compute(monitor);
+            } catch (Throwable t) {
+                error = t;
+            }
+            Runnable finalCommit = commit;
+            Throwable finalError = error;
+            Platform.runLater(() -> finishOperation(operationName, monitor, finalCommit, finalError, startTime));
+        });
+    }
+
+    private void finishOperation(String operationName, OperationMonitor monitor, Runnable commit, Throwable error, long startTime){
+        try {
+            if (error == null && !monitor.isCancelled() && commit != null)
+                commit.run();
+        } catch (Throwable t) {
+            error = t;
+        }
+        String seconds = String.format("%.2f", (System.nanoTime() - startTime) / 1_000_000_000.0);
+        if (error instanceof CancellationException || (error == null && monitor.isCancelled())) {
+            operationStatus.set(operationName + " cancelled after " + seconds + " s");
+            Dialogs.showInfoNotification("Operation Cancelled", operationName + " cancelled, nothing was changed.");
+        }
+        else if (error != null) {
+            logger.error("{} failed", operationName, error);
+            operationStatus.set(operationName + " failed after " + seconds + " s");
+            Dialogs.showErrorNotification("Operation Failed", operationName + " failed: " + error.getMessage());
+        }
+        else
+            operationStatus.set(operationName + " done in " + seconds + " s");
+        currentMonitor = null;
+        operationProgress.set(0);
+        operationRunning.set(false);
+    }
+
+    public void cancelOperation(){
+        OperationMonitor monitor = currentMonitor;
+        if (monitor != null)
+            monitor.cancel();
+    }
+
+    public BooleanProperty operationRunningProperty(){
+        return operationRunning;
+    }
+
+    public DoubleProperty operationProgressProperty(){
+        return operationProgress;
+    }
+
+    public StringProperty operationStatusProperty(){
+        return operationStatus;
     }
 
     private boolean isNoSelection(PathObjectSelectionModel selectionModel, boolean modifyingDetections){
@@ -381,140 +639,361 @@ public class MoreOptionsCommand implements Runnable {
             return;
         }
 
-        Collection<PathObject> objects = hierarchy.getSelectionModel().getSelectedObjects();
-        Collection<PathObject> onlyAreasObjects = new ArrayList<>(objects);
-        Collection<PathObject> convertedObjects = new ArrayList<>();
-        for (PathObject object : objects) {
-            if (!object.getROI().isArea()) {
-                onlyAreasObjects.remove(object);
-                continue;
-            }
-            PathClass pathClass = object.getPathClass();
-            String objectName = object.getName();
-            PathObject convertedObject;
-
-            if (toDetections) {
-                if (pathClass != null)
-                    convertedObject = PathObjects.createDetectionObject(object.getROI(), pathClass);
-                else
-                    convertedObject = PathObjects.createDetectionObject(object.getROI());
-            }
-            else {
-                if (pathClass != null)
-                    convertedObject = PathObjects.createAnnotationObject(object.getROI(), pathClass);
-                else
-                    convertedObject = PathObjects.createAnnotationObject(object.getROI());
+        List<PathObject> objects = new ArrayList<>(hierarchy.getSelectionModel().getSelectedObjects());
+        String operationName = toDetections ? "Annotations to detections" : "Detections to annotations";
+        runOperation(operationName, monitor -> {
+            Collection<PathObject> onlyAreasObjects = new ArrayList<>(objects.size());
+            Collection<PathObject> convertedObjects = new ArrayList<>(objects.size());
+            monitor.setTotal(objects.size());
+            for (PathObject object : objects) {
+                monitor.worked(1);
+                if (!object.getROI().isArea())
+                    continue;
+                onlyAreasObjects.add(object);
+                PathClass pathClass = object.getPathClass();
+                String objectName = object.getName();
+                PathObject convertedObject;
+
+                if (toDetections) {
+                    if (pathClass != null)
+                        convertedObject = PathObjects.createDetectionObject(object.getROI(), pathClass);
+                    else
+                        convertedObject = PathObjects.createDetectionObject(object.getROI());
+                }
+                else {
+                    if (pathClass != null)
+                        convertedObject = PathObjects.createAnnotationObject(object.getROI(), pathClass);
+                    else
+                        convertedObject = PathObjects.createAnnotationObject(object.getROI());
+                }
+                if (objectName != null)
+                    convertedObject.setName(objectName);
+                convertedObjects.add(convertedObject);
             }
-            if (objectName != null)
-                convertedObject.setName(objectName);
-            convertedObjects.add(convertedObject);
-        }
-        hierarchy.getSelectionModel().clearSelection();
-        hierarchy.removeObjects(onlyAreasObjects, true);
-        hierarchy.addObjects(convertedObjects);
+            UndoStack.Step undoStep = new UndoStack.Step(operationName, hierarchy);
+            undoStep.recordRemoved(onlyAreasObjects);
+            undoStep.recordAdded(convertedObjects);
+
+            return () -> {
+                checkStillInHierarchy(onlyAreasObjects);
+                hierarchy.getSelectionModel().clearSelection();
+                hierarchy.removeObjects(onlyAreasObjects, true);
+                hierarchy.addObjects(convertedObjects);
+                undoStack.push(undoStep);
+            };
+        });
     }
 
-    public void simplifySelectedDetections(PathObjectHierarchy hierarchy, Double altitudeThreshold){
-
-        if (isNoSelection(hierarchy.getSelectionModel(), true))
-            return;
+    public void simplifySelectedDetections(PathObjectHierarchy hierarchy, Double altitudeThreshold, boolean keepSharedBorders){
+        if (keepSharedBorders)
+            simplifySelectedDetections(hierarchy, "Simplify",
+                    (objects, monitor) -> {
+                        // Unselected detections stay as they are, the simplified shapes must not grow into them
+                        Collection<PathObject> backgroundDetections = getDetectionsAround(objects, altitudeThreshold);
+                        backgroundDetections.removeAll(new HashSet<>(objects));
+                        return SimplificationUtils.simplifyPreservingTopology(objects, backgroundDetections, altitudeThreshold, monitor);
+                    });
+        else
+            simplifySelectedDetections(hierarchy, "Simplify",
+                    (objects, monitor) -> SimplificationUtils.simplifyAll(objects, roi -> SimplificationUtils.simplify(roi, altitudeThreshold), monitor));
+    }
 
-        Collection<PathObject> objects = hierarchy.getSelectionModel().getSelectedObjects();
-        for (PathObject object : objects){
-            ROI pathROI = object.getROI();
-            if (pathROI instanceof PolygonROI polygonROI) {
-                pathROI = ShapeSimplifier.simplifyPolygon(polygonROI, altitudeThreshold);
-            } else {
-                pathROI = ShapeSimplifier.simplifyShape(pathROI, altitudeThreshold);
-            }
-            ((PathDetectionObject)object).setROI(pathROI);
-        }
-        hierarchy.fireObjectsChangedEvent(hierarchy, objects);
+    public void simplifySelectedDetectionsToVertexBudget(PathObjectHierarchy hierarchy, int maxPointsPerShape){
+        simplifySelectedDetections(hierarchy, "Simplify to max points",
+                (objects, monitor) -> SimplificationUtils.simplifyAll(objects, roi -> SimplificationUtils.simplifyToVertexBudget(roi, maxPointsPerShape), monitor));
     }
 
-    public void repaintDetectionsBordersToMatchLaser(double customStrokeMicrons) throws IOException {
-        PathObjectSelectionModel selectionModel = this.qupath.getImageData().getHierarchy().getSelectionModel();
+    public void resampleSelectedDetections(PathObjectHierarchy hierarchy, double stepMicrons){
+        PixelCalibration calibration = qupath.getImageData().getServer().getPixelCalibration();
+        double stepPixels = ObjectUtils.micronsToPixels(stepMicrons, calibration);
+        simplifySelectedDetections(hierarchy, "Resample",
+                (objects, monitor) -> SimplificationUtils.simplifyAll(objects, roi -> SimplificationUtils.resample(roi, stepPixels), monitor));
+    }
 
-//        if (isNoSelection(selectionModel, true)) // modify selected
-//            return;
-//        Collection<PathObject> objects = selectionModel.getSelectedObjects();
+    private void simplifySelectedDetections(PathObjectHierarchy hierarchy, String operationName,
+                                            BiFunction<List<PathObject>, OperationMonitor, ROI[]> simplifier){
 
-        /* We repaint all detections instead of selected because the way we set the new stroke thickness
-           combined with the use of PathObjectPainter.paintSpecifiedObjects triggers the change for all detections
-           regardless of what we pass as objects :/ for now it'll do tho */
+        if (isNoSelection(hierarchy.getSelectionModel(), true))
+            return;
 
-        Collection<PathObject> objects = this.qupath.getImageData().getHierarchy().getDetectionObjects(); // modify all
+        List<PathObject> objects = hierarchy.getSelectionModel().getSelectedObjects().stream()
+                .filter(object -> object instanceof PathDetectionObject)
+                .toList();
+        runOperation(operationName, monitor -> {
+            UndoStack.Step undoStep = new UndoStack.Step(operationName, hierarchy);
+            undoStep.recordModified(objects);
+
+            // ROIs are simplified in parallel, then set and announced at once
+            ROI[] simplifiedROIs = simplifier.apply(objects, monitor);
+            return () -> {
+                checkStillInHierarchy(objects);
+                long pointsBefore = 0;
+                for (int i = 0; i < objects.size(); i++) {
+                    pointsBefore += objects.get(i).getROI().getNumPoints();
+                    ((PathDetectionObject)objects.get(i)).setROI(simplifiedROIs[i]);
+                }
+                hierarchy.fireObjectsChangedEvent(hierarchy, objects);
+                undoStack.push(undoStep);
+                Dialogs.showInfoNotification("Operation Successful", objects.size() + " shapes processed, vertices: " +
+                        pointsBefore + " -> " + SimplificationUtils.countPoints(simplifiedROIs));
+            };
+        });
+    }
 
-        ImageServer<BufferedImage> server = qupath.getViewer().getImageData().getServer();
-        OverlayOptions overlay = qupath.getOverlayOptions();
-        double downsample = qupath.getViewer().getDownsampleFactor();
-        ObjectUtils.repaintDetectionsWithCustomStroke(objects, customStrokeMicrons, server, overlay, selectionModel, downsample);
-        Dialogs.showInfoNotification("Action successful", objects.size() + " detections modified");
+    // Drawn by an overlay instead of changing the detections' stroke width preference, nothing else on screen changes
+    public boolean showLaserKerf(double apertureMicrons, boolean selectedOnly){
+        PathObjectHierarchy hierarchy = qupath.getImageData().getHierarchy();
+        Collection<PathObject> objectsToDraw = null;
+        if (selectedOnly) {
+            if (isNoSelection(hierarchy.getSelectionModel(), true))
+                return false;
+            objectsToDraw = hierarchy.getSelectionModel().getSelectedObjects();
+        }
+        PixelCalibration calibration = qupath.getImageData().getServer().getPixelCalibration();
+        double kerfPixels = ObjectUtils.micronsToPixels(apertureMicrons, calibration);
+        if (kerfOverlay == null) {
+            kerfOverlay = new KerfOverlay(qupath.getViewer(), kerfPixels);
+            kerfOverlay.setObjectsToDraw(objectsToDraw);
+            kerfOverlay.attach();
+        }
+        else {
+            kerfOverlay.setKerfPixels(kerfPixels);
+            kerfOverlay.setObjectsToDraw(objectsToDraw);
+        }
+        return true;
     }
 
-    public void flipImage(ImageData<BufferedImage> imageData,
-                                 boolean flipX, boolean flipY) throws IOException {
+    public void hideLaserKerf(){
+        if (kerfOverlay == null)
+            return;
+        kerfOverlay.detach();
+        kerfOverlay = null;
+    }
 
-        ImageServer<BufferedImage> server = imageData.getServer();
-        PathObjectHierarchy hierarchy = imageData.getHierarchy();
-        ImageData.ImageType imageType = imageData.getImageType();
-        Collection<PathObject> allParentObjects = hierarchy.getRootObject().getChildObjects();
-        int imageWidth = server.getWidth();
-        int imageHeight = server.getHeight();
+    /**
+     * Copies the selected detections to another image of the project, transformed either with the affine transform
+     * fitted to the calibration points present in both images, or with one entered by the user.
+     */
+    public void transferSelectedDetections(boolean useCalibrationPoints){
+        if (isNoSelection(hierarchy.getSelectionModel(), true))
+            return;
+        Project<BufferedImage> project = qupath.getProject();
+        if (project == null){
+            Dialogs.showInfoNotification("No open project detected", "Please create a project or open existing one.");
+            return;
+        }
+        ProjectImageEntry<BufferedImage> sourceEntry = project.getEntry(imageData);
+        List<ProjectImageEntry<BufferedImage>> targetEntries = project.getImageList().stream()
+                .filter(entry -> entry != sourceEntry)
+                .toList();
+        if (targetEntries.isEmpty()){
+            Dialogs.showWarningNotification("No other images", "The project has no other image to transfer the detections to.");
+            return;
+        }
+        List<String> targetNames = targetEntries.stream().map(ProjectImageEntry::getImageName).toList();
+        String targetName = Dialogs.showChoiceDialog("Transfer detections", "Target image:", targetNames, targetNames.get(0));
+        if (targetName == null)
+            return;
+        ProjectImageEntry<BufferedImage> targetEntry = targetEntries.get(targetNames.indexOf(targetName));
 
-        int scaleX = 1;
-        int scaleY = 1;
-        int translateX = 0;
-        int translateY = 0;
+        // An image open in a viewer is modified there, otherwise it is read, then modified and saved in the commit
+        ImageData<BufferedImage> openTargetImageData = getOpenImageData(project, targetEntry);
 
-        if (flipX){
-            scaleX = -1;
-            translateX = -imageWidth;
-        }
-        if (flipY){
-            scaleY = -1;
-            translateY = -imageHeight;
+        AffineTransform manualTransform = null;
+        if (!useCalibrationPoints){
+            String input = Dialogs.showInputDialog("Transfer detections",
+                    "Affine transform from this image to the target (m00 m01 m02 m10 m11 m12):", "1 0 0 0 1 0");
+            if (input == null)
+                return;
+            manualTransform = parseAffineTransform(input);
+            if (manualTransform == null){
+                Dialogs.showErrorNotification("Invalid transform", "Please enter 6 numbers separated by spaces or commas.");
+                return;
+            }
         }
+        AffineTransform finalManualTransform = manualTransform;
+
+        List<PathObject> objects = hierarchy.getSelectionModel().getSelectedObjects().stream()
+                .filter(PathObject::isDetection)
+                .toList();
+        Map<String, Point2> sourcePoints = ObjectUtils.getCalibrationPointsByName(hierarchy.getAnnotationObjects());
+        PixelCalibration sourceCalibration = imageData.getServer().getPixelCalibration();
+
+        runOperation("Transfer", monitor -> {
+            ImageData<BufferedImage> targetImageData = openTargetImageData;
+            if (targetImageData == null) {
+                try {
+                    targetImageData = targetEntry.readImageData();
+                } catch (IOException e) {
+                    throw new IOException("Could not read the data of " + targetName + ".", e);
+                }
+            }
 
-        AffineTransform transform = new AffineTransform();
-        transform.scale(scaleX, scaleY);
-        transform.translate(translateX, translateY);
+            AffineTransform transform = finalManualTransform;
+            String fitMessage = "";
+            String scaleWarning = null;
+            if (useCalibrationPoints){
+                Map<String, Point2> targetPoints = ObjectUtils.getCalibrationPointsByName(targetImageData.getHierarchy().getAnnotationObjects());
+                List<String> sharedNames = sourcePoints.keySet().stream().filter(targetPoints::containsKey).toList();
+                if (sharedNames.size() < 3)
+                    throw new IllegalStateException("Both images need at least 3 'Point' annotations with matching names (calibration1, calibration2, calibration3, ...).");
+                double[] source = new double[sharedNames.size() * 2];
+                double[] target = new double[sharedNames.size() * 2];
+                for (int i = 0; i < sharedNames.size(); i++){
+                    Point2 sourcePoint = sourcePoints.get(sharedNames.get(i));
+                    Point2 targetPoint = targetPoints.get(sharedNames.get(i));
+                    source[i * 2] = sourcePoint.getX();
+                    source[i * 2 + 1] = sourcePoint.getY();
+                    target[i * 2] = targetPoint.getX();
+                    target[i * 2 + 1] = targetPoint.getY();
+                }
+                AffineFit fit = AffineFit.fit(source, target);
+                transform = fit.getTransform();
+                fitMessage = String.format(" Calibration residuals: max %.2f px, RMS %.2f px.", fit.getMaxResidual(), fit.getRmsResidual());
+
+                // One source pixel should cover sourcePixelSize / targetPixelSize target pixels
+                PixelCalibration targetCalibration = targetImageData.getServer().getPixelCalibration();
+                String report = String.format("Calibration residuals: max %.2f, RMS %.2f px. Fitted scale: %.4f x %.4f.",
+                        fit.getMaxResidual(), fit.getRmsResidual(), fit.getScaleX(), fit.getScaleY());
+                double expectedScale = Double.NaN;
+                if (sourceCalibration.hasPixelSizeMicrons() && targetCalibration.hasPixelSizeMicrons()) {
+                    expectedScale = sourceCalibration.getAveragedPixelSizeMicrons() / targetCalibration.getAveragedPixelSizeMicrons();
+                    report += String.format(" Expected from the pixel sizes: %.4f.", expectedScale);
+                }
+                logger.info("Transfer calibration: {}", report);
+                if (fit.isScaleSuspicious(expectedScale))
+                    scaleWarning = report;
+            }
 
-        TransformedServerBuilder builder = new TransformedServerBuilder(server);
-        builder.transform(transform);
-        ImageServer<BufferedImage> flippedServer = builder.build();
+            AffineTransform finalTransform = transform;
+            PathObject[] transferred = new PathObject[objects.size()];
+            monitor.setTotal(objects.size());
+            IntStream.range(0, objects.size()).parallel().forEach(i -> {
+                transferred[i] = ObjectUtils.transformObject(objects.get(i), finalTransform);
+                monitor.worked(1);
+            });
+            List<PathObject> objectsToAdd = Arrays.stream(transferred).filter(Objects::nonNull).toList();
+
+            String message = objectsToAdd.size() + " detections transferred to " + targetName + "." + fitMessage;
+            ImageData<BufferedImage> finalTargetImageData = targetImageData;
+            String finalScaleWarning = scaleWarning;
+            return () -> {
+                if (finalScaleWarning != null && !Dialogs.showConfirmDialog("Check the calibration",
+                        finalScaleWarning + "\nThe fitted scale doesn't match the images, a calibration point may be misplaced. Transfer anyway?"))
+                    throw new CancellationException();
+
+                finalTargetImageData.getHierarchy().addObjects(objectsToAdd);
+                if (openTargetImageData == null) {
+                    try {
+                        targetEntry.saveImageData(finalTargetImageData);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not save the data of " + targetName + ".", e);
+                    }
+                }
 
-        String flippedImageName = server.getMetadata().getName();
-        if (flipX){
-            flippedImageName = flippedImageName + " (H)";
+                // The target may not be the image the More Options window works on, so the step undoes itself by object IDs
+                Set<UUID> transferredIDs = new HashSet<>();
+                for (PathObject object : objectsToAdd)
+                    transferredIDs.add(object.getID());
+                UndoStack.Step undoStep = new UndoStack.Step("Transfer", null);
+                undoStep.setCustomUndo(() -> removeTransferredObjects(project, targetEntry, transferredIDs));
+                undoStack.push(undoStep);
+                Dialogs.showInfoNotification("Operation Successful", message);
+            };
+        });
+    }
+
+    // Reverts a transfer in the target image, wherever it is currently kept
+    private void removeTransferredObjects(Project<BufferedImage> project, ProjectImageEntry<BufferedImage> targetEntry, Set<UUID> transferredIDs){
+        ImageData<BufferedImage> targetImageData = getOpenImageData(project, targetEntry);
+        boolean open = targetImageData != null;
+        try {
+            if (!open)
+                targetImageData = targetEntry.readImageData();
+            PathObjectHierarchy targetHierarchy = targetImageData.getHierarchy();
+            List<PathObject> transferredObjects = targetHierarchy.getDetectionObjects().stream()
+                    .filter(object -> transferredIDs.contains(object.getID()))
+                    .toList();
+            targetHierarchy.removeObjects(transferredObjects, true);
+            if (!open)
+                targetEntry.saveImageData(targetImageData);
+        } catch (IOException e) {
+            logger.error("Could not undo the transfer to {}", targetEntry.getImageName(), e);
+            Dialogs.showErrorNotification("Undo failed", "Could not update the data of " + targetEntry.getImageName() + ".");
         }
-        else if (flipY){
-            flippedImageName = flippedImageName + " (V)";
+    }
+
+    private ImageData<BufferedImage> getOpenImageData(Project<BufferedImage> project, ProjectImageEntry<BufferedImage> entry){
+        for (QuPathViewer viewer : qupath.getAllViewers()) {
+            if (viewer.getImageData() != null && project.getEntry(viewer.getImageData()) == entry)
+                return viewer.getImageData();
         }
-        else{
-            logger.error("Creating a copy of an image without flipping it shouldn't be possible with this tool.");
+        return null;
+    }
+
+    private static AffineTransform parseAffineTransform(String input){
+        String[] values = input.trim().split("[\\s,;]+");
+        if (values.length != 6)
+            return null;
+        double[] m = new double[6];
+        try {
+            for (int i = 0; i < 6; i++)
+                m[i] = Double.parseDouble(values[i]);
+        } catch (NumberFormatException e) {
+            return null;
         }
-        ImageServerMetadata.Builder metadata = new ImageServerMetadata.Builder(flippedServer.getMetadata()).name(flippedImageName);
-        flippedServer.setMetadata(metadata.build());
+        return new AffineTransform(m[0], m[3], m[1], m[4], m[2], m[5]);
+    }
 
-        ImageData<BufferedImage> flippedImageData = new ImageData<>(flippedServer);
-        flippedImageData.setImageType(imageType);
+    public void flipImage(ImageData<BufferedImage> imageData, boolean flipX, boolean flipY){
+        // The tree is walked here, the user may edit the hierarchy while the copy is being mirrored
+        ObjectUtils.HierarchySnapshot snapshot = ObjectUtils.snapshotHierarchy(imageData.getHierarchy());
+        runOperation(flipX ? "Horizontal flip" : "Vertical flip", monitor -> {
+            ImageServer<BufferedImage> server = imageData.getServer();
+            ImageData.ImageType imageType = imageData.getImageType();
+            int imageWidth = server.getWidth();
+            int imageHeight = server.getHeight();
 
-        PathObjectHierarchy flippedHierarchy = flippedImageData.getHierarchy();
+            AffineTransform transform = ObjectUtils.createMirrorTransform(flipX, flipY, imageWidth, imageHeight);
 
-        for (PathObject parent : allParentObjects){
-            PathObject mirroredParent = ObjectUtils.mirrorObject(parent, scaleX, scaleY, translateX, translateY);
-            ObjectUtils.addObjectAccountingForParent(flippedHierarchy, mirroredParent, null);
-            if (parent.hasChildObjects()){
-                for (PathObject child : parent.getChildObjects()){
-                    PathObject mirroredChild = ObjectUtils.mirrorObject(child, scaleX, scaleY, translateX, translateY);
-                    ObjectUtils.addObjectAccountingForParent(flippedHierarchy, mirroredChild, mirroredParent);
-                }
+            TransformedServerBuilder builder = new TransformedServerBuilder(server);
+            builder.transform(transform);
+            ImageServer<BufferedImage> flippedServer = builder.build();
+
+            String flippedImageName = server.getMetadata().getName();
+            if (flipX){
+                flippedImageName = flippedImageName + " (H)";
             }
-        }
+            else if (flipY){
+                flippedImageName = flippedImageName + " (V)";
+            }
+            else{
+                logger.error("Creating a copy of an image without flipping it shouldn't be possible with this tool.");
+            }
+            ImageServerMetadata.Builder metadata = new ImageServerMetadata.Builder(flippedServer.getMetadata()).name(flippedImageName);
+            flippedServer.setMetadata(metadata.build());
+
+            ImageData<BufferedImage> flippedImageData = new ImageData<>(flippedServer);
+            flippedImageData.setImageType(imageType);
+
+            // The flipped hierarchy isn't shown anywhere yet, it can be filled off the FX thread
+            PathObjectHierarchy flippedHierarchy = flippedImageData.getHierarchy();
+            int mirroredObjects = ObjectUtils.mirrorHierarchy(snapshot, flippedHierarchy, transform, monitor);
+            logger.info("Mirrored {} objects into the flipped image", mirroredObjects);
+
+            return () -> {
+                // Undoing a flip means going back to the original image, the flipped copy is left as it is
+                ProjectImageEntry<BufferedImage> sourceEntry = qupath.getProject() != null ? qupath.getProject().getEntry(imageData) : null;
+                if (sourceEntry != null) {
+                    UndoStack.Step undoStep = new UndoStack.Step(flipX ? "Horizontal flip" : "Vertical flip", null);
+                    undoStep.setCustomUndo(() -> qupath.openImageEntry(sourceEntry));
+                    undoStack.push(undoStep);
+                }
 
-        getQupath().getViewer().setImageData(flippedImageData);
-        getQupath().refreshProject();
+                getQupath().getViewer().setImageData(flippedImageData);
+                getQupath().refreshProject();
+            };
+        });
     }
 
     public QuPathGUI getQupath(){
@@ -4,19 +4,23 @@ package org.cecad.lmd.commands;
 import javafx.scene.Scene;
 import javafx.scene.layout.Pane;
 import javafx.stage.Stage;
+import org.cecad.lmd.common.WellPlateFormat;
 import org.cecad.lmd.ui.ControlsInterface;
 import org.cecad.lmd.ui.SetCollectorPane;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.lib.gui.QuPathGUI;
 
+import java.util.EnumMap;
+import java.util.Map;
+
 public class SetCollectorCommand implements Runnable {
     private final static Logger logger = LoggerFactory.getLogger(SetCollectorCommand.class);
     private final String TITLE = "Set Collector";
     private Stage stage;
     private final QuPathGUI qupath;
     private final ControlsInterface mainPane;
-    WellPlateCommand wpCommand = null;
+    private final Map<WellPlateFormat, WellPlateCommand> wpCommands = new EnumMap<>(WellPlateFormat.class);
     StandardCollectorsCommand scCommand = null;
 
     public SetCollectorCommand(QuPathGUI qupath, ControlsInterface mainPane) {
@@ -62,9 +66,11 @@ public class SetCollectorCommand implements Runnable {
         return stage;
     }
 
-    public void openWellPlatePane() {
+    public void openWellPlatePane(WellPlateFormat format) {
+        WellPlateCommand wpCommand = wpCommands.get(format);
         if (wpCommand == null) {
-            wpCommand = new WellPlateCommand(qupath, mainPane);
+            wpCommand = new WellPlateCommand(qupath, format, mainPane);
+            wpCommands.put(format, wpCommand);
             wpCommand.run();
         }
         else {
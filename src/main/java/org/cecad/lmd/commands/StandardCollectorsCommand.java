@@ -3,8 +3,6 @@ package org.cecad.lmd.commands;
 import javafx.scene.Scene;
 import javafx.scene.layout.Pane;
 import javafx.stage.Stage;
-import org.cecad.lmd.common.ClassUtils;
-import org.cecad.lmd.common.ObjectUtils;
 import org.cecad.lmd.ui.ControlsInterface;
 import org.cecad.lmd.ui.StandardCollectorsPane;
 import org.slf4j.Logger;
@@ -12,7 +10,6 @@ import org.slf4j.LoggerFactory;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.objects.classes.PathClass;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -53,15 +50,15 @@ public class StandardCollectorsCommand implements Runnable {
     }
 
     public List<String> getAllClassesNames(){
-        return new ArrayList<>(mainPane.getAllClasses().stream().map(PathClass::getName).toList());
+        return mainPane.getClassStatistics().getClassNames();
     }
 
     public int getAllDetectionsCount(){
-        return ObjectUtils.filterOutAnnotations(mainPane.getDetectionsToExport()).size();
+        return mainPane.getClassStatistics().getCount();
     }
 
     public Map<String, Integer> getAllClassesCounts(){
-        return ClassUtils.getObjectsCountByClass(mainPane.getDetectionsToExport());
+        return mainPane.getClassStatistics().getCountsByClass();
     }
 
     private void showStage(){
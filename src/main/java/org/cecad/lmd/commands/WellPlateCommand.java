@@ -3,28 +3,26 @@ package org.cecad.lmd.commands;
 import javafx.scene.Scene;
 import javafx.scene.layout.Pane;
 import javafx.stage.Stage;
-import org.cecad.lmd.common.ClassUtils;
-import org.cecad.lmd.common.ObjectUtils;
+import org.cecad.lmd.common.WellPlateFormat;
 import org.cecad.lmd.ui.ControlsInterface;
 import org.cecad.lmd.ui.WellPlatePane;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.lib.gui.QuPathGUI;
-import qupath.lib.objects.classes.PathClass;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 public class WellPlateCommand implements Runnable {
     private final static Logger logger = LoggerFactory.getLogger(SetCollectorCommand.class);
-    private final String TITLE = "96-Well Plate";
+    private final WellPlateFormat format;
     private Stage stage;
     private final QuPathGUI qupath;
     private final ControlsInterface mainPane;
 
-    public WellPlateCommand(QuPathGUI qupath, ControlsInterface mainPane) {
+    public WellPlateCommand(QuPathGUI qupath, WellPlateFormat format, ControlsInterface mainPane) {
         this.qupath = qupath;
+        this.format = format;
         this.mainPane = mainPane;
     }
 
@@ -61,7 +59,7 @@ public class WellPlateCommand implements Runnable {
         Scene scene = new Scene(pane);
         stage.setScene(scene);
         stage.setResizable(false);
-        stage.setTitle(TITLE);
+        stage.setTitle(format.getCollectorName());
         stage.initOwner(qupath.getStage());
         stage.setOnCloseRequest(event -> {
             hideStage();
@@ -71,15 +69,19 @@ public class WellPlateCommand implements Runnable {
     }
 
     public List<String> getAllClassesNames(){
-        return new ArrayList<>(mainPane.getAllClasses().stream().map(PathClass::getName).toList());
+        return mainPane.getClassStatistics().getClassNames();
     }
 
     public Map<String, Integer> getAllClassesCounts(){
-        return ClassUtils.getObjectsCountByClass(mainPane.getDetectionsToExport());
+        return mainPane.getClassStatistics().getCountsByClass();
     }
 
     public int getAllDetectionsCount(){
-        return ObjectUtils.filterOutAnnotations(mainPane.getDetectionsToExport()).size();
+        return mainPane.getClassStatistics().getCount();
+    }
+
+    public WellPlateFormat getFormat(){
+        return format;
     }
 
     public Logger getLogger(){
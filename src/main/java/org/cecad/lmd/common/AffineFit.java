@@ -0,0 +1,137 @@
+package org.cecad.lmd.common;
+
+import java.awt.geom.AffineTransform;
+
+/**
+ * Least squares affine transform between matched point pairs, with the residual of each pair.
+ * Three pairs define the transform exactly (residuals are then only rounding), more pairs make badly placed points visible.
+ */
+public class AffineFit {
+
+    /**
+     * Relative deviation of the fitted scale from the expected one, or of the aspect ratio from 1, above which a fit is suspicious.
+     */
+    public static final double SCALE_TOLERANCE = 0.05;
+
+    private final AffineTransform transform;
+    private final double[] residuals;
+
+    private AffineFit(AffineTransform transform, double[] residuals) {
+        this.transform = transform;
+        this.residuals = residuals;
+    }
+
+    /**
+     * @param source interleaved x, y of the points to map from
+     * @param target interleaved x, y of the same points, in the same order, in the space to map to
+     * @throws IllegalArgumentException if there are fewer than 3 pairs or the source points are collinear
+     */
+    public static AffineFit fit(double[] source, double[] target) {
+        int n = source.length / 2;
+        if (n < 3 || target.length != source.length)
+            throw new IllegalArgumentException("At least 3 matched point pairs are needed, got " + n);
+
+        // Centred source coordinates keep the normal equations well conditioned for slide-sized pixel values
+        double meanX = 0, meanY = 0;
+        for (int i = 0; i < n; i++) {
+            meanX += source[i * 2] / n;
+            meanY += source[i * 2 + 1] / n;
+        }
+
+        // Normal equations, the same 3x3 matrix serves both the x and the y row of the transform
+        double[][] ata = new double[3][3];
+        double[] atx = new double[3];
+        double[] aty = new double[3];
+        for (int i = 0; i < n; i++) {
+            double[] row = {source[i * 2] - meanX, source[i * 2 + 1] - meanY, 1};
+            for (int r = 0; r < 3; r++) {
+                for (int c = 0; c < 3; c++)
+                    ata[r][c] += row[r] * row[c];
+                atx[r] += row[r] * target[i * 2];
+                aty[r] += row[r] * target[i * 2 + 1];
+            }
+        }
+        double[] xRow = solve(ata, atx);
+        double[] yRow = solve(ata, aty);
+        AffineTransform transform = new AffineTransform(xRow[0], yRow[0], xRow[1], yRow[1], xRow[2], yRow[2]);
+        transform.translate(-meanX, -meanY);
+
+        double[] mapped = new double[source.length];
+        transform.transform(source, 0, mapped, 0, n);
+        double[] residuals = new double[n];
+        for (int i = 0; i < n; i++)
+            residuals[i] = Math.hypot(mapped[i * 2] - target[i * 2], mapped[i * 2 + 1] - target[i * 2 + 1]);
+        return new AffineFit(transform, residuals);
+    }
+
+    // Cramer's rule, fine for a 3x3 system
+    private static double[] solve(double[][] m, double[] b) {
+        double det = determinant(m[0][0], m[0][1], m[0][2], m[1][0], m[1][1], m[1][2], m[2][0], m[2][1], m[2][2]);
+        // With centred coordinates det = n * (Sxx * Syy - Sxy^2), relative to n * Sxx * Syy it is 1 - r^2 whatever the units,
+        // so nearly collinear points are caught for microns and pixels alike
+        if (!(Math.abs(det) > 1e-10 * m[0][0] * m[1][1] * m[2][2]))
+            throw new IllegalArgumentException("Calibration points must not lie on one line");
+        double[] solution = new double[3];
+        for (int c = 0; c < 3; c++) {
+            double[][] replaced = {m[0].clone(), m[1].clone(), m[2].clone()};
+            for (int r = 0; r < 3; r++)
+                replaced[r][c] = b[r];
+            solution[c] = determinant(replaced[0][0], replaced[0][1], replaced[0][2], replaced[1][0], replaced[1][1],
+                    replaced[1][2], replaced[2][0], replaced[2][1], replaced[2][2]) / det;
+        }
+        return solution;
+    }
+
+    private static double determinant(double a, double b, double c, double d, double e, double f, double g, double h, double i) {
+        return a * (e * i - f * h) - b * (d * i - f * g) + c * (d * h - e * g);
+    }
+
+    public AffineTransform getTransform() {
+        return transform;
+    }
+
+    /**
+     * Length of the mapped unit vector along x.
+     */
+    public double getScaleX() {
+        return Math.hypot(transform.getScaleX(), transform.getShearY());
+    }
+
+    /**
+     * Length of the mapped unit vector along y.
+     */
+    public double getScaleY() {
+        return Math.hypot(transform.getShearX(), transform.getScaleY());
+    }
+
+    /**
+     * @param expectedScale scale the fit should have, NaN when it isn't known and only the aspect ratio is checked
+     * @return true if the aspect ratio or the scale is off by more than {@link #SCALE_TOLERANCE}, which usually means a mistyped or misplaced point
+     */
+    public boolean isScaleSuspicious(double expectedScale) {
+        double scaleX = getScaleX();
+        double scaleY = getScaleY();
+        boolean suspicious = Math.abs(scaleX / scaleY - 1) > SCALE_TOLERANCE;
+        if (!Double.isNaN(expectedScale))
+            suspicious |= Math.abs(Math.sqrt(scaleX * scaleY) / expectedScale - 1) > SCALE_TOLERANCE;
+        return suspicious;
+    }
+
+    public double[] getResiduals() {
+        return residuals.clone();
+    }
+
+    public double getMaxResidual() {
+        double max = 0;
+        for (double residual : residuals)
+            max = Math.max(max, residual);
+        return max;
+    }
+
+    public double getRmsResidual() {
+        double sum = 0;
+        for (double residual : residuals)
+            sum += residual * residual;
+        return Math.sqrt(sum / residuals.length);
+    }
+}
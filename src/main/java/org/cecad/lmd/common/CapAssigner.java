@@ -0,0 +1,118 @@
+package org.cecad.lmd.common;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hands out the caps (wells) to the exported shapes one at a time, following the {@link WellAssignment}s in their order.
+ * The assignments of each class are indexed by class ID and every class has its own cursor, so finding the cap of a shape
+ * doesn't scan the assignments; the counters are plain int arrays.
+ * <p>
+ * Caps are returned as indices: the well index for well plates, the assignment's index for standard collectors;
+ * {@link #getCapLabel(int)} gives the label the LMD expects.
+ * Plate wells are filled one after the other, starting from the last well of the assignment, with
+ * {@link WellAssignment#getObjectsPerWell()} shapes each.
+ */
+public class CapAssigner {
+
+    public static final int NO_CAP = -1;
+
+    private final List<WellAssignment> assignments;
+    private final WellPlateFormat plateFormat; // null for standard collectors
+    private final ClassIndex classIndex;
+
+    private final int[][] assignmentsByClass; // by class ID, assignment indices in order
+    private final int[] classCursors; // by class ID, first assignment in assignmentsByClass that may still take shapes
+    private int anyClassCursor = 0;
+    private final int[] remaining; // by assignment, shapes it still takes
+    private final int[] wellsLeft; // by assignment, plate wells not filled yet
+    private final int[] leftInWell; // by assignment, shapes still going into the current plate well
+
+    public CapAssigner(List<WellAssignment> assignments, WellPlateFormat plateFormat) {
+        this.assignments = List.copyOf(assignments);
+        this.plateFormat = plateFormat;
+
+        int n = assignments.size();
+        classIndex = new ClassIndex();
+        int[] assignmentClassIDs = new int[n];
+        remaining = new int[n];
+        wellsLeft = new int[n];
+        leftInWell = new int[n];
+        for (int i = 0; i < n; i++) {
+            WellAssignment assignment = assignments.get(i);
+            assignmentClassIDs[i] = assignment.hasClass() ? classIndex.intern(assignment.className()) : ClassIndex.NO_CLASS;
+            if (assignment.isOnPlate()) {
+                int objectsPerWell = assignment.getObjectsPerWell();
+                wellsLeft[i] = assignment.wellIndices().length;
+                remaining[i] = wellsLeft[i] * objectsPerWell;
+            }
+            else
+                remaining[i] = assignment.objectQty();
+        }
+
+        int[] assignmentsPerClass = new int[classIndex.size()];
+        for (int id : assignmentClassIDs) {
+            if (id != ClassIndex.NO_CLASS)
+                assignmentsPerClass[id]++;
+        }
+        assignmentsByClass = new int[classIndex.size()][];
+        for (int id = 0; id < assignmentsByClass.length; id++)
+            assignmentsByClass[id] = new int[assignmentsPerClass[id]];
+        Arrays.fill(assignmentsPerClass, 0);
+        for (int i = 0; i < n; i++) {
+            int id = assignmentClassIDs[i];
+            if (id != ClassIndex.NO_CLASS)
+                assignmentsByClass[id][assignmentsPerClass[id]++] = i;
+        }
+        classCursors = new int[classIndex.size()];
+    }
+
+    /**
+     * @return the class ID of the name in this assigner, {@link ClassIndex#NO_CLASS} if no assignment is of that class
+     */
+    public int getClassID(String className) {
+        return classIndex.getID(className);
+    }
+
+    /**
+     * @return the cap of the next shape of the class, {@link #NO_CAP} if the class has no assignment left
+     */
+    public int nextCap(int classID) {
+        if (classID == ClassIndex.NO_CLASS || classID >= assignmentsByClass.length)
+            return NO_CAP;
+        int[] classAssignments = assignmentsByClass[classID];
+        int cursor = classCursors[classID];
+        while (cursor < classAssignments.length && remaining[classAssignments[cursor]] == 0)
+            cursor++;
+        classCursors[classID] = cursor;
+        return cursor < classAssignments.length ? take(classAssignments[cursor]) : NO_CAP;
+    }
+
+    /**
+     * @return the cap of the next shape without a class, taken from the first assignment with room left, whatever its class
+     */
+    public int nextCapAnyClass() {
+        while (anyClassCursor < remaining.length && remaining[anyClassCursor] == 0)
+            anyClassCursor++;
+        return anyClassCursor < remaining.length ? take(anyClassCursor) : NO_CAP;
+    }
+
+    private int take(int assignmentIndex) {
+        remaining[assignmentIndex]--;
+        WellAssignment assignment = assignments.get(assignmentIndex);
+        if (!assignment.isOnPlate())
+            return assignmentIndex;
+        if (leftInWell[assignmentIndex] == 0) {
+            wellsLeft[assignmentIndex]--;
+            leftInWell[assignmentIndex] = assignment.getObjectsPerWell();
+        }
+        leftInWell[assignmentIndex]--;
+        return assignment.wellIndices()[wellsLeft[assignmentIndex]];
+    }
+
+    public String getCapLabel(int cap) {
+        if (plateFormat != null)
+            return plateFormat.getLabel(cap);
+        return assignments.get(cap).wellLabel();
+    }
+}
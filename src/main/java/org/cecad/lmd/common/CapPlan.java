@@ -0,0 +1,102 @@
+package org.cecad.lmd.common;
+
+import qupath.lib.objects.PathObject;
+
+import java.util.*;
+
+/**
+ * The cap (well) of every exported shape, decided before anything is written. The same plan then drives the CapIDs of the XML
+ * and the auxiliary JSON, and since no writer changes assignment counters anymore, shapes can be written in any order or in parallel.
+ * Planning is deterministic: the same shapes in the same order with the same assignments always give the same caps.
+ */
+public final class CapPlan {
+
+    private final int[] capIndexByShape; // CapAssigner.NO_CAP for shapes without a cap
+    private final String[] capLabels; // by cap index
+    private final Map<String, List<String>> wellLabelsByClass;
+    private final Map<String, Integer> shapesCountByWell;
+
+    private CapPlan(int[] capIndexByShape, String[] capLabels, Map<String, List<String>> wellLabelsByClass, Map<String, Integer> shapesCountByWell) {
+        this.capIndexByShape = capIndexByShape;
+        this.capLabels = capLabels;
+        this.wellLabelsByClass = wellLabelsByClass;
+        this.shapesCountByWell = shapesCountByWell;
+    }
+
+    /**
+     * @param shapes the exported detections, in the order they are written
+     * @param plateFormat format of the plate, null for standard collectors
+     */
+    public static CapPlan create(List<PathObject> shapes, List<WellAssignment> assignments, WellPlateFormat plateFormat) {
+        List<String> classNames = new ArrayList<>(shapes.size());
+        for (PathObject shape : shapes)
+            classNames.add(shape.getPathClass() != null ? shape.getPathClass().toString() : null); // as in the exported GeoJSON
+        return createFromClassNames(classNames, assignments, plateFormat);
+    }
+
+    /**
+     * @param shapeClassNames class of each shape in the order they are written, null for unclassified shapes
+     */
+    public static CapPlan createFromClassNames(List<String> shapeClassNames, List<WellAssignment> assignments, WellPlateFormat plateFormat) {
+        CapAssigner capAssigner = new CapAssigner(assignments, plateFormat);
+        int[] capIndexByShape = new int[shapeClassNames.size()];
+        for (int i = 0; i < capIndexByShape.length; i++) {
+            String className = shapeClassNames.get(i);
+            capIndexByShape[i] = className != null ? capAssigner.nextCap(capAssigner.getClassID(className)) : capAssigner.nextCapAnyClass();
+        }
+
+        String[] capLabels = new String[plateFormat != null ? plateFormat.getWellCount() : assignments.size()];
+        Map<String, Set<String>> wellLabelsByClass = new LinkedHashMap<>();
+        Map<String, Integer> shapesCountByWell = new LinkedHashMap<>();
+        for (int i = 0; i < capIndexByShape.length; i++) {
+            int cap = capIndexByShape[i];
+            if (cap == CapAssigner.NO_CAP)
+                continue;
+            if (capLabels[cap] == null)
+                capLabels[cap] = capAssigner.getCapLabel(cap);
+            String className = shapeClassNames.get(i);
+            if (className != null)
+                wellLabelsByClass.computeIfAbsent(className, k -> new LinkedHashSet<>()).add(capLabels[cap]);
+            shapesCountByWell.merge(capLabels[cap], 1, Integer::sum);
+        }
+
+        Map<String, List<String>> wellLabelsByClassLists = new LinkedHashMap<>();
+        wellLabelsByClass.forEach((className, labels) -> wellLabelsByClassLists.put(className, List.copyOf(labels)));
+        return new CapPlan(capIndexByShape, capLabels, Collections.unmodifiableMap(wellLabelsByClassLists),
+                Collections.unmodifiableMap(shapesCountByWell));
+    }
+
+    public int getShapeCount() {
+        return capIndexByShape.length;
+    }
+
+    /**
+     * @return the cap index of the shape, {@link CapAssigner#NO_CAP} if it has none
+     */
+    public int getCapIndex(int shapeIndex) {
+        return capIndexByShape[shapeIndex];
+    }
+
+    /**
+     * @return label of the shape's cap, null if it has none
+     */
+    public String getCapLabel(int shapeIndex) {
+        int cap = capIndexByShape[shapeIndex];
+        return cap == CapAssigner.NO_CAP ? null : capLabels[cap];
+    }
+
+    public int[] getCapIndexByShape() {
+        return capIndexByShape.clone();
+    }
+
+    /**
+     * @return labels of the wells that received shapes of each class, in the order they were first used
+     */
+    public Map<String, List<String>> getWellLabelsByClass() {
+        return wellLabelsByClass;
+    }
+
+    public Map<String, Integer> getShapesCountByWell() {
+        return shapesCountByWell;
+    }
+}
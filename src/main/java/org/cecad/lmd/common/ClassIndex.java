@@ -0,0 +1,131 @@
+package org.cecad.lmd.common;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+
+import java.util.*;
+
+/**
+ * Dense integer IDs for the classes taking part in one operation.
+ * Classes are interned by name (like everywhere else in QuCut) once, hot loops then compare ints and index
+ * primitive arrays instead of hashing or comparing strings per object.
+ * Derived classes with the same name (e.g. "Tumor: Positive" and "Stroma: Positive") share an ID, so IDs are fine for ranks
+ * and per-name figures, but whether two objects are of the same class is still decided by their PathClass.
+ */
+public class ClassIndex {
+
+    public static final int NO_CLASS = -1;
+    public static final int UNRANKED = Integer.MAX_VALUE;
+
+    private final Map<String, Integer> idsByName = new HashMap<>();
+    private final Map<PathClass, Integer> idsByClass = new IdentityHashMap<>(); // PathClass instances are cached by QuPath
+    private final List<String> names = new ArrayList<>();
+
+    public static ClassIndex fromObjects(Collection<PathObject> objects) {
+        ClassIndex classIndex = new ClassIndex();
+        for (PathObject object : objects)
+            classIndex.intern(object.getPathClass());
+        return classIndex;
+    }
+
+    public static ClassIndex fromNames(Collection<String> classNames) {
+        ClassIndex classIndex = new ClassIndex();
+        for (String name : classNames)
+            classIndex.intern(name);
+        return classIndex;
+    }
+
+    public int intern(PathClass pathClass) {
+        if (pathClass == null)
+            return NO_CLASS;
+        Integer id = idsByClass.get(pathClass);
+        if (id == null) {
+            id = intern(pathClass.getName());
+            idsByClass.put(pathClass, id);
+        }
+        return id;
+    }
+
+    public int intern(String name) {
+        if (name == null)
+            return NO_CLASS;
+        Integer id = idsByName.get(name);
+        if (id == null) {
+            id = names.size();
+            idsByName.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    public int getID(PathClass pathClass) {
+        if (pathClass == null)
+            return NO_CLASS;
+        Integer id = idsByClass.get(pathClass);
+        if (id != null)
+            return id;
+        return getID(pathClass.getName());
+    }
+
+    public int getID(String name) {
+        if (name == null)
+            return NO_CLASS;
+        return idsByName.getOrDefault(name, NO_CLASS);
+    }
+
+    public String getName(int id) {
+        return id == NO_CLASS ? null : names.get(id);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Position of each class in the ranking (lower is higher priority), {@link #UNRANKED} for classes not in the ranking.
+     */
+    public int[] createRankTable(List<String> priorityRanking) {
+        int[] ranks = new int[size()];
+        Arrays.fill(ranks, UNRANKED);
+        for (int i = priorityRanking.size() - 1; i >= 0; i--) { // backwards, so the first occurrence wins
+            int id = getID(priorityRanking.get(i));
+            if (id != NO_CLASS)
+                ranks[id] = i;
+        }
+        return ranks;
+    }
+
+    public int getRank(int[] rankTable, int id) {
+        return id == NO_CLASS || id >= rankTable.length ? UNRANKED : rankTable[id];
+    }
+
+    public int[] internAll(Collection<PathObject> objects) {
+        int[] ids = new int[objects.size()];
+        int i = 0;
+        for (PathObject object : objects)
+            ids[i++] = intern(object.getPathClass());
+        return ids;
+    }
+
+    public int[] countByClass(Collection<PathObject> objects) {
+        int[] ids = internAll(objects);
+        int[] counts = new int[size()];
+        for (int id : ids) {
+            if (id != NO_CLASS)
+                counts[id]++;
+        }
+        return counts;
+    }
+
+    public double[] areaByClass(Collection<PathObject> objects) {
+        int[] ids = internAll(objects);
+        double[] areas = new double[size()];
+        int i = 0;
+        for (PathObject object : objects) {
+            int id = ids[i++];
+            if (id != NO_CLASS)
+                areas[id] += object.getROI().getArea();
+        }
+        return areas;
+    }
+}
@@ -0,0 +1,147 @@
+package org.cecad.lmd.common;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.*;
+
+/**
+ * Counts, areas (in pixels), perimeters (in pixels) and vertex counts by class of one set of detections, computed in a single pass.
+ * Objects are then added, removed or updated one at a time (see {@link ExportSet}), so the panes can ask for the figures
+ * as often as they like without rescanning the detections.
+ */
+public class ClassStatistics {
+
+    private record Contribution(int classID, double area, double perimeter, int vertices) {}
+
+    private final ClassIndex classIndex = new ClassIndex();
+    private final List<PathClass> pathClasses = new ArrayList<>(); // by class ID
+    private final Map<PathObject, Contribution> contributions = new IdentityHashMap<>();
+    private int[] counts = new int[0];
+    private double[] areas = new double[0];
+    private double[] perimeters = new double[0];
+    private long[] vertices = new long[0];
+
+    public ClassStatistics(Collection<PathObject> objects) {
+        for (PathObject object : objects) {
+            if (object.isDetection())
+                add(object);
+        }
+    }
+
+    public synchronized void add(PathObject object) {
+        if (contributions.containsKey(object))
+            return;
+        ROI roi = object.getROI();
+        int id = classIndex.intern(object.getPathClass());
+        if (id != ClassIndex.NO_CLASS && id >= counts.length)
+            grow(id, object.getPathClass());
+        Contribution contribution = new Contribution(id, roi.getArea(), roi.getLength(), roi.getNumPoints());
+        contributions.put(object, contribution);
+        apply(contribution, 1);
+    }
+
+    public synchronized void remove(PathObject object) {
+        Contribution contribution = contributions.remove(object);
+        if (contribution != null)
+            apply(contribution, -1);
+    }
+
+    // The old figures are the ones stored, the object itself may already be changed
+    public synchronized void update(PathObject object) {
+        if (!contributions.containsKey(object))
+            return;
+        remove(object);
+        add(object);
+    }
+
+    public synchronized boolean contains(PathObject object) {
+        return contributions.containsKey(object);
+    }
+
+    private void grow(int id, PathClass pathClass) {
+        int size = Math.max(id + 1, counts.length * 2);
+        counts = Arrays.copyOf(counts, size);
+        areas = Arrays.copyOf(areas, size);
+        perimeters = Arrays.copyOf(perimeters, size);
+        vertices = Arrays.copyOf(vertices, size);
+        while (pathClasses.size() <= id)
+            pathClasses.add(null);
+        pathClasses.set(id, pathClass);
+    }
+
+    private void apply(Contribution contribution, int sign) {
+        int id = contribution.classID();
+        if (id == ClassIndex.NO_CLASS)
+            return;
+        counts[id] += sign;
+        areas[id] += sign * contribution.area();
+        perimeters[id] += sign * contribution.perimeter();
+        vertices[id] += (long) sign * contribution.vertices();
+    }
+
+    /**
+     * @return number of detections, unclassified included
+     */
+    public synchronized int getCount() {
+        return contributions.size();
+    }
+
+    public synchronized Map<String, Integer> getCountsByClass() {
+        Map<String, Integer> result = new HashMap<>();
+        for (int id = 0; id < classIndex.size(); id++) {
+            if (counts[id] > 0)
+                result.put(classIndex.getName(id), counts[id]);
+        }
+        return result;
+    }
+
+    public synchronized Map<String, Double> getAreasByClass() {
+        Map<String, Double> result = new HashMap<>();
+        for (int id = 0; id < classIndex.size(); id++) {
+            if (counts[id] > 0)
+                result.put(classIndex.getName(id), areas[id]);
+        }
+        return result;
+    }
+
+    public synchronized Map<String, Double> getPerimetersByClass() {
+        Map<String, Double> result = new HashMap<>();
+        for (int id = 0; id < classIndex.size(); id++) {
+            if (counts[id] > 0)
+                result.put(classIndex.getName(id), perimeters[id]);
+        }
+        return result;
+    }
+
+    public synchronized Map<String, Long> getVertexCountsByClass() {
+        Map<String, Long> result = new HashMap<>();
+        for (int id = 0; id < classIndex.size(); id++) {
+            if (counts[id] > 0)
+                result.put(classIndex.getName(id), vertices[id]);
+        }
+        return result;
+    }
+
+    /**
+     * @return names of the classes with at least one detection, in the order they were first met
+     */
+    public synchronized List<String> getClassNames() {
+        List<String> result = new ArrayList<>();
+        for (int id = 0; id < classIndex.size(); id++) {
+            if (counts[id] > 0)
+                result.add(classIndex.getName(id));
+        }
+        return result;
+    }
+
+    public synchronized Set<PathClass> getPathClasses() {
+        Set<PathClass> result = new HashSet<>();
+        for (int id = 0; id < classIndex.size(); id++) {
+            if (counts[id] > 0)
+                result.add(pathClasses.get(id));
+        }
+        return result;
+    }
+}
@@ -37,25 +37,47 @@ public class ClassUtils {
     }
 
     public static Map<String, Integer> getObjectsCountByClass(Collection<PathObject> objects) {
+        ClassIndex classIndex = ClassIndex.fromObjects(objects);
+        int[] counts = classIndex.countByClass(objects);
         Map<String, Integer> classesCount = new HashMap<>();
-        for (PathObject object : objects) {
-            PathClass objectClass = object.getPathClass();
-            if (objectClass != null) {
-                String className = objectClass.getName();
-                classesCount.put(className, classesCount.getOrDefault(className, 0) + 1);
-            }
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] > 0)
+                classesCount.put(classIndex.getName(id), counts[id]);
         }
         return classesCount;
     }
 
     public static Map<String, Double> getObjectsAreaByClass(Collection<PathObject> objects) {
+        ClassIndex classIndex = ClassIndex.fromObjects(objects);
+        double[] areas = classIndex.areaByClass(objects);
         Map<String, Double> classesAreas = new HashMap<>();
-        for (PathObject object : objects) {
-            PathClass objectClass = object.getPathClass();
-            if (objectClass != null) {
-                String className = objectClass.getName();
-                classesAreas.put(className, classesAreas.getOrDefault(className, 0.0) + object.getROI().getArea());
-            }
+        for (int id = 0; id < areas.length; id++)
+            classesAreas.put(classIndex.getName(id), areas[id]);
+        return classesAreas;
+    }
+
+    /**
+     * Nominal (inside the contour) and effective (minus the laser's kerf) area of each class, in pixels.
+     */
+    public static Map<String, Map<String, Double>> getObjectsNominalAndEffectiveAreaByClass(Collection<PathObject> objects, double kerfPixels) {
+        List<PathObject> objectsList = new ArrayList<>(objects);
+        ClassIndex classIndex = ClassIndex.fromObjects(objectsList);
+        int[] ids = classIndex.internAll(objectsList);
+        double[] effectiveAreas = EffectiveAreaAnalysis.computeEffectiveAreas(objectsList, kerfPixels);
+        double[] nominalByClass = new double[classIndex.size()];
+        double[] effectiveByClass = new double[classIndex.size()];
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == ClassIndex.NO_CLASS)
+                continue;
+            nominalByClass[ids[i]] += objectsList.get(i).getROI().getArea();
+            effectiveByClass[ids[i]] += effectiveAreas[i];
+        }
+        Map<String, Map<String, Double>> classesAreas = new HashMap<>();
+        for (int id = 0; id < nominalByClass.length; id++) {
+            Map<String, Double> areas = new LinkedHashMap<>();
+            areas.put("Nominal", nominalByClass[id]);
+            areas.put("Effective", effectiveByClass[id]);
+            classesAreas.put(classIndex.getName(id), areas);
         }
         return classesAreas;
     }
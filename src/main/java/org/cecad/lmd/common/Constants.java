@@ -9,6 +9,18 @@ public class Constants {
         public static final String DISCARD_1 = "Discard one, keep the other (random)";
         public static final String EXCLUDE_BOTH = "Discard both objects";
         public static final String SET_PRIORITY = "Set priority for each object class";
+        public static final String SPLIT_VORONOI = "Split at the midline between objects (no overlaps)";
+    }
+
+    public static class ExportMirror {
+        public static final String NONE = "None";
+        public static final String HORIZONTAL = "Horizontal (left-right)";
+        public static final String VERTICAL = "Vertical (top-bottom)";
+    }
+
+    public static class ExportCoordinates {
+        public static final String IMAGE = "Image pixels";
+        public static final String STAGE = "Stage (calibrated)";
     }
 
     public static class CapAssignments {
@@ -23,6 +35,8 @@ public class Constants {
         public static final String _8_FOLD_STRIP = "8-Fold Strip";
         public static final String _12_FOLD_STRIP = "12-Fold Strip";
         public static final String _96_WELL_PLATE = "96-Well Plate";
+        public static final String _384_WELL_PLATE = "384-Well Plate";
+        public static final String _1536_WELL_PLATE = "1536-Well Plate";
         public static final String PETRI_DISHES = "Petri Dishes";
 
     }
@@ -32,18 +46,12 @@ public class Constants {
         public static final String _8_FOLD_STRIP_DATA = "well_data_8_fold_strip.json";
         public static final String _12_FOLD_STRIP_DATA = "well_data_12_fold_strip.json";
         public static final String _96_WELL_PLATE_DATA = "well_data_96_well_plate.json";
+        public static final String _384_WELL_PLATE_DATA = "well_data_384_well_plate.json";
+        public static final String _1536_WELL_PLATE_DATA = "well_data_1536_well_plate.json";
         public static final String PETRI_DISHES_DATA = "well_data_petri_dishes.json";
 
     }
 
-    public static class WellDataFileFields {
-        public static final String WELL_LABEL = "wellLabel";
-        public static final String WELL_COUNT = "wellCount";
-        public static final String OBJECT_QTY = "objectQty";
-        public static final String OBJECT_CLASS_TYPE = "objectType";
-
-    }
-
     public static class ObjectTypes {
         public static final String CELL = "cell";
         public static final String DETECTION = "detection";
@@ -94,6 +102,7 @@ public class Constants {
         public static final String CP1 = "calibration1";
         public static final String CP2 = "calibration2";
         public static final String CP3 = "calibration3";
+        public static final String CALIBRATION_PREFIX = "calibration"; // followed by the point's number
 
     }
 }
@@ -0,0 +1,41 @@
+package org.cecad.lmd.common;
+
+import org.locationtech.jts.geom.Geometry;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Area of tissue actually collected from each shape: the laser burns a kerf of its aperture's width centred on the contour,
+ * so what falls into the well is the shape shrunk by half the aperture.
+ * Results are cached per ROI (ROIs are immutable) and kerf, so repeated exports don't buffer the same shapes again.
+ */
+public class EffectiveAreaAnalysis {
+
+    private record CachedArea(double kerfPixels, double area) {}
+
+    private static final Map<ROI, CachedArea> cache = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * @return effective area in pixels of each object, in their order
+     */
+    public static double[] computeEffectiveAreas(List<PathObject> objects, double kerfPixels) {
+        double[] areas = new double[objects.size()];
+        IntStream.range(0, objects.size()).parallel().forEach(i -> areas[i] = getEffectiveArea(objects.get(i).getROI(), kerfPixels));
+        return areas;
+    }
+
+    public static double getEffectiveArea(ROI roi, double kerfPixels) {
+        if (kerfPixels <= 0)
+            return roi.getArea();
+        CachedArea cached = cache.get(roi);
+        if (cached != null && cached.kerfPixels() == kerfPixels)
+            return cached.area();
+        Geometry shrunk = roi.getGeometry().buffer(-kerfPixels / 2);
+        double area = shrunk.isEmpty() ? 0 : shrunk.getArea(); // thinner than the kerf, nothing left to collect
+        cache.put(roi, new CachedArea(kerfPixels, area));
+        return area;
+    }
+}
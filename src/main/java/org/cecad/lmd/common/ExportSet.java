@@ -0,0 +1,153 @@
+package org.cecad.lmd.common;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+import qupath.lib.objects.hierarchy.events.PathObjectSelectionListener;
+
+import java.util.*;
+
+/**
+ * The detections to export, either all of them or the selected ones, kept up to date from the hierarchy and selection events
+ * instead of being collected again whenever they are needed. Size and the {@link ClassStatistics} are always current,
+ * a list of the objects is only copied out for the export itself.
+ */
+public class ExportSet implements PathObjectHierarchyListener, PathObjectSelectionListener {
+
+    private final PathObjectHierarchy hierarchy;
+    private final boolean selectedOnly;
+    private final Set<PathObject> members = new LinkedHashSet<>(); // PathObject has identity equality
+    private final ClassStatistics classStatistics;
+
+    public ExportSet(PathObjectHierarchy hierarchy, boolean selectedOnly) {
+        this.hierarchy = hierarchy;
+        this.selectedOnly = selectedOnly;
+        Collection<PathObject> objects = selectedOnly ? hierarchy.getSelectionModel().getSelectedObjects() : hierarchy.getDetectionObjects();
+        for (PathObject object : objects) {
+            if (object.isDetection())
+                members.add(object);
+        }
+        classStatistics = new ClassStatistics(members);
+    }
+
+    public void attach() {
+        hierarchy.addListener(this);
+        if (selectedOnly)
+            hierarchy.getSelectionModel().addPathObjectSelectionListener(this);
+    }
+
+    public void detach() {
+        hierarchy.removeListener(this);
+        if (selectedOnly)
+            hierarchy.getSelectionModel().removePathObjectSelectionListener(this);
+    }
+
+    public PathObjectHierarchy getHierarchy() {
+        return hierarchy;
+    }
+
+    public ClassStatistics getClassStatistics() {
+        return classStatistics;
+    }
+
+    public synchronized int size() {
+        return members.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * @return a copy of the detections, in the order they joined the set
+     */
+    public synchronized List<PathObject> getObjects() {
+        return new ArrayList<>(members);
+    }
+
+    private synchronized void add(PathObject object) {
+        if (object.isDetection() && members.add(object))
+            classStatistics.add(object);
+    }
+
+    private synchronized void remove(PathObject object) {
+        if (members.remove(object))
+            classStatistics.remove(object);
+    }
+
+    private void addWithDescendants(PathObject object) {
+        add(object);
+        if (object.hasChildObjects()) {
+            for (PathObject child : object.getChildObjects())
+                addWithDescendants(child);
+        }
+    }
+
+    private void removeWithDescendants(PathObject object) {
+        remove(object);
+        if (object.hasChildObjects()) {
+            for (PathObject child : object.getChildObjects())
+                removeWithDescendants(child);
+        }
+    }
+
+    @Override
+    public void selectedPathObjectChanged(PathObject pathObjectSelected, PathObject previousObject, Collection<PathObject> allSelected) {
+        Set<PathObject> selected = allSelected instanceof Set<PathObject> set ? set : new HashSet<>(allSelected);
+        synchronized (this) {
+            for (PathObject object : new ArrayList<>(members)) {
+                if (!selected.contains(object))
+                    remove(object);
+            }
+            for (PathObject object : selected)
+                add(object);
+        }
+    }
+
+    @Override
+    public void hierarchyChanged(PathObjectHierarchyEvent event) {
+        if (event.isChanging())
+            return;
+        switch (event.getEventType()) {
+            case ADDED -> {
+                if (!selectedOnly) {
+                    for (PathObject object : event.getChangedObjects())
+                        addWithDescendants(object);
+                }
+            }
+            case REMOVED -> {
+                for (PathObject object : event.getChangedObjects())
+                    removeWithDescendants(object);
+            }
+            case CHANGE_CLASSIFICATION, CHANGE_OTHER -> {
+                for (PathObject object : event.getChangedObjects())
+                    classStatistics.update(object);
+            }
+            // Batch edits don't say which objects changed
+            case OTHER_STRUCTURE_CHANGE -> resync();
+            default -> {}
+        }
+    }
+
+    private synchronized void resync() {
+        if (!selectedOnly) {
+            Set<PathObject> detections = new HashSet<>(hierarchy.getDetectionObjects());
+            for (PathObject object : new ArrayList<>(members)) {
+                if (!detections.contains(object))
+                    remove(object);
+            }
+            for (PathObject object : detections)
+                add(object);
+        }
+        else {
+            for (PathObject object : new ArrayList<>(members)) {
+                if (!PathObjectTools.hierarchyContainsObject(hierarchy, object))
+                    remove(object);
+            }
+        }
+        for (PathObject object : members)
+            classStatistics.update(object);
+    }
+}
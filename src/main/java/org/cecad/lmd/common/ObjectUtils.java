@@ -2,35 +2,40 @@ package org.cecad.lmd.common;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LinearRing;
 import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.operation.buffer.BufferOp;
+import org.locationtech.jts.operation.buffer.BufferParameters;
 import qupath.lib.geom.Point2;
 import qupath.fx.dialogs.Dialogs;
-import qupath.lib.gui.viewer.OverlayOptions;
-import qupath.lib.gui.viewer.PathObjectPainter;
-import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathCellObject;
 import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathTileObject;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
-import qupath.lib.objects.hierarchy.events.PathObjectSelectionModel;
 import qupath.lib.regions.ImagePlane;
 import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.GeometryROI;
+import qupath.lib.roi.PolygonROI;
 import qupath.lib.roi.RoiTools;
 import qupath.lib.roi.interfaces.ROI;
-import qupath.lib.gui.prefs.PathPrefs;
 
 import java.awt.*;
-import java.awt.image.BufferedImage;
+import java.awt.geom.AffineTransform;
 import java.io.IOException;
 import java.util.*;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 
+import static org.cecad.lmd.common.Constants.CalibrationPointsNames.CALIBRATION_PREFIX;
 import static org.cecad.lmd.common.Constants.ObjectTypes.ANNOTATION;
 
 public class ObjectUtils {
@@ -68,65 +73,143 @@ public class ObjectUtils {
         return geomFactory.createPolygon(linearRing, null);
     }
 
-    public static List<PathObject> sortObjectsByPriority(final Collection<PathObject> objects, List<String> priorityRanking) {
-        List<PathObject> sortedObjects = new ArrayList<>(objects);
+    public static List<PathObject> sortObjectsByPriority(final Collection<PathObject> objects, ClassIndex classIndex, int[] priorityRanks) {
+        // Sort keys are packed as (rank << 32 | original position): one primitive sort, stable, no lookups in the comparator
+        int[] classIDs = classIndex.internAll(objects);
+        long[] keys = new long[classIDs.length];
+        for (int i = 0; i < classIDs.length; i++)
+            keys[i] = ((long) classIndex.getRank(priorityRanks, classIDs[i]) << 32) | i;
+        Arrays.sort(keys);
 
-        sortedObjects.sort((obj1, obj2) -> {
-            PathClass class1 = obj1.getPathClass();
-            PathClass class2 = obj2.getPathClass();
+        List<PathObject> objectsList = new ArrayList<>(objects);
+        List<PathObject> sortedObjects = new ArrayList<>(objectsList.size());
+        for (long key : keys)
+            sortedObjects.add(objectsList.get((int) key));
 
-            String class1Name = class1 != null ? class1.getName() : null;
-            String class2Name = class2 != null ? class2.getName() : null;
-
-            int index1 = priorityRanking.indexOf(class1Name);
-            int index2 = priorityRanking.indexOf(class2Name);
+        return sortedObjects;
+    }
 
-            if (index1 != -1 && index2 == -1) {
-                return -1; // obj1 comes before obj2
-            } else if (index1 == -1 && index2 != -1) {
-                return 1; // obj2 comes before obj1
-            }
+    /**
+     * Horizontal and/or vertical mirror of an image of the given size, mapping the image onto itself.
+     */
+    public static AffineTransform createMirrorTransform(boolean flipX, boolean flipY, int imageWidth, int imageHeight){
+        AffineTransform transform = new AffineTransform();
+        transform.scale(flipX ? -1 : 1, flipY ? -1 : 1);
+        transform.translate(flipX ? -imageWidth : 0, flipY ? -imageHeight : 0);
+        return transform;
+    }
 
-            return Integer.compare(index1, index2);
-        });
+    /**
+     * The objects of a hierarchy below the root, flattened depth-first (parents always come before their children),
+     * with the index of each object's parent, -1 for top level objects.
+     */
+    public record HierarchySnapshot(List<PathObject> objects, List<Integer> parentIndices) {}
 
-        return sortedObjects;
+    /**
+     * Walks the live tree, so it has to be called where the hierarchy isn't being edited (the FX thread).
+     */
+    public static HierarchySnapshot snapshotHierarchy(PathObjectHierarchy source){
+        List<PathObject> objects = new ArrayList<>();
+        List<Integer> parentIndices = new ArrayList<>();
+        Deque<Integer> stack = new ArrayDeque<>();
+        addChildren(source.getRootObject(), -1, objects, parentIndices, stack);
+        while (!stack.isEmpty()) {
+            int index = stack.pop();
+            addChildren(objects.get(index), index, objects, parentIndices, stack);
+        }
+        return new HierarchySnapshot(List.copyOf(objects), List.copyOf(parentIndices));
     }
 
-    public static PathObject mirrorObject(PathObject object, int scaleX, int scaleY, int translateX, int translateY){
-        ROI roi = object.getROI();
-        roi = roi.scale(scaleX, scaleY);
-        roi = roi.translate(-translateX, -translateY);
-        PathClass objectClass = object.getPathClass();
-        String objectName = object.getName();
-        PathObject newObject = null;
+    /**
+     * Mirrors a snapshot of a whole hierarchy, at any depth, into an empty hierarchy.
+     * Objects are transformed in parallel with one shared transform, the mirrored tree is assembled detached
+     * and attached to the target in a single batch.
+     * @return number of mirrored objects
+     */
+    public static int mirrorHierarchy(HierarchySnapshot source, PathObjectHierarchy target, AffineTransform transform,
+                                      OperationMonitor monitor){
+        List<PathObject> objects = source.objects();
+        List<Integer> parentIndices = source.parentIndices();
+
+        PathObject[] mirrored = new PathObject[objects.size()];
+        monitor.setTotal(objects.size());
+        IntStream.range(0, objects.size()).parallel().forEach(i -> {
+            mirrored[i] = transformObject(objects.get(i), transform);
+            monitor.worked(1);
+        });
 
-        if (object.isDetection()) {
-            if (objectClass != null)
-                newObject = PathObjects.createDetectionObject(roi, objectClass);
+        List<PathObject> topLevelObjects = new ArrayList<>();
+        int count = 0;
+        for (int i = 0; i < mirrored.length; i++) {
+            if (mirrored[i] == null)
+                continue;
+            count++;
+            // Children of objects which can't be mirrored go to the closest mirrored ancestor
+            int parentIndex = parentIndices.get(i);
+            while (parentIndex >= 0 && mirrored[parentIndex] == null)
+                parentIndex = parentIndices.get(parentIndex);
+            if (parentIndex >= 0)
+                mirrored[parentIndex].addChildObject(mirrored[i]);
             else
-                newObject = PathObjects.createDetectionObject(roi);
+                topLevelObjects.add(mirrored[i]);
+        }
+        target.getRootObject().addChildObjects(topLevelObjects);
+        target.fireHierarchyChangedEvent(target.getRootObject());
+        return count;
+    }
 
-            if (objectName != null)
-                newObject.setName(objectName);
+    private static void addChildren(PathObject parent, int parentIndex, List<PathObject> objects, List<Integer> parentIndices, Deque<Integer> stack){
+        if (!parent.hasChildObjects())
+            return;
+        for (PathObject child : parent.getChildObjects()) {
+            objects.add(child);
+            parentIndices.add(parentIndex);
+            stack.push(objects.size() - 1);
         }
-        else if (object.isAnnotation()) {
-            if (objectClass != null)
-                newObject = PathObjects.createAnnotationObject(roi, objectClass);
-            else
-                newObject = PathObjects.createAnnotationObject(roi);
+    }
 
-            if (objectName != null)
-                newObject.setName(objectName);
+    /**
+     * Copy of the object (class, name, colour and measurements included) with its ROI, and nucleus for cells, transformed.
+     * @return the transformed copy, or null for objects which can't be copied on their own (e.g. TMA cores)
+     */
+    public static PathObject transformObject(PathObject object, AffineTransform transform){
+        ROI roi = transformROI(object.getROI(), transform);
+        PathClass objectClass = object.getPathClass();
+        PathObject newObject;
+
+        if (object instanceof PathCellObject cell)
+            newObject = PathObjects.createCellObject(roi,
+                    cell.getNucleusROI() == null ? null : transformROI(cell.getNucleusROI(), transform), objectClass, null);
+        else if (object instanceof PathTileObject)
+            newObject = PathObjects.createTileObject(roi, objectClass, null);
+        else if (object.isDetection())
+            newObject = PathObjects.createDetectionObject(roi, objectClass);
+        else if (object.isAnnotation())
+            newObject = PathObjects.createAnnotationObject(roi, objectClass);
+        else
+            return null; // e.g. TMA cores, they belong to the TMA grid
+
+        if (object.getName() != null)
+            newObject.setName(object.getName());
+        newObject.setColor(object.getColor());
+        MeasurementList measurements = object.getMeasurementList();
+        if (!measurements.isEmpty()) {
+            MeasurementList newMeasurements = newObject.getMeasurementList();
+            for (String name : measurements.getMeasurementNames())
+                newMeasurements.put(name, measurements.get(name));
+            newMeasurements.close();
         }
         return newObject;
     }
 
-    public static void addObjectAccountingForParent(PathObjectHierarchy hierarchy, PathObject object, PathObject parent) {
-        if (parent != null)
-            parent.addChildObject(object);
-        else
-            hierarchy.addObject(object);
+    // Outlines go through the packed coordinates in one pass; simple shapes (rectangles, ellipses, points, lines)
+    // keep their type as long as the transform only scales and translates
+    private static ROI transformROI(ROI roi, AffineTransform transform){
+        int rotationOrShear = AffineTransform.TYPE_GENERAL_ROTATION | AffineTransform.TYPE_QUADRANT_ROTATION | AffineTransform.TYPE_GENERAL_TRANSFORM;
+        if (roi instanceof PolygonROI || roi instanceof GeometryROI || (transform.getType() & rotationOrShear) != 0)
+            return PackedGeometry.fromROI(roi).transform(transform).toROI();
+        return roi.scale(transform.getScaleX(), transform.getScaleY())
+                .translate(transform.getTranslateX(), transform.getTranslateY());
     }
 
     public static Collection<PathObject> filterOutAnnotations(Collection<PathObject> objects){
@@ -150,6 +233,22 @@ public class ObjectUtils {
                 .filter(p -> p.isAnnotation() && p.getROI().isPoint() && containsName(p.getDisplayedName(), names))
                 .collect(Collectors.toList());
     }
+    /**
+     * Point annotations named calibration1, calibration2, ... (case-insensitive), by lower case name.
+     */
+    public static Map<String, Point2> getCalibrationPointsByName(Collection<PathObject> objects) {
+        Map<String, Point2> points = new TreeMap<>();
+        for (PathObject object : objects) {
+            String name = object.getName();
+            if (!object.isAnnotation() || !object.getROI().isPoint() || name == null)
+                continue;
+            name = name.toLowerCase();
+            if (name.matches(CALIBRATION_PREFIX + "\\d+"))
+                points.put(name, object.getROI().getAllPoints().get(0));
+        }
+        return points;
+    }
+
     static boolean containsName(String targetName, String... names) {
         for (String name : names) {
             if (targetName.equals(name)) {
@@ -159,23 +258,9 @@ public class ObjectUtils {
         return false;
     }
 
-    public static void repaintDetectionsWithCustomStroke(Collection<PathObject> objects,
-                                                         double customStrokeValueMicrons,
-                                                         ImageServer<BufferedImage> server,
-                                                         OverlayOptions overlayOptions,
-                                                         PathObjectSelectionModel selectionModel,
-                                                         double downsample) {
-        PixelCalibration calibration = server.getPixelCalibration();
-        double customStrokeValuePixels = micronsToPixels(customStrokeValueMicrons, calibration);
-        PathPrefs.detectionStrokeThicknessProperty().setValue(customStrokeValuePixels);
-
-        BufferedImage compatibleImage = new BufferedImage(server.getWidth(), server.getHeight(), BufferedImage.TYPE_INT_ARGB);
-        Graphics2D graphics = compatibleImage.createGraphics();
-        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-        PathObjectPainter.paintSpecifiedObjects(graphics, objects, overlayOptions, selectionModel, downsample);
-
-        graphics.dispose();
+    // Same buffering for the committed expansion and its preview, so what is previewed is what gets expanded
+    public static Geometry expandGeometry(Geometry geometry, double radiusPixels){
+        return BufferOp.bufferOp(geometry, radiusPixels, BufferParameters.DEFAULT_QUADRANT_SEGMENTS);
     }
 
     public static double micronsToPixels(double inputMicrons, PixelCalibration calibration){
@@ -187,4 +272,10 @@ public class ObjectUtils {
 
         return outputPixels;
     }
+
+    public static double pixelsToMicrons(double inputPixels, PixelCalibration calibration){
+        if (calibration.hasPixelSizeMicrons())
+            return inputPixels * calibration.getAveragedPixelSizeMicrons();
+        return inputPixels;
+    }
 }
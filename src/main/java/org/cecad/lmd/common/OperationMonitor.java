@@ -0,0 +1,67 @@
+package org.cecad.lmd.common;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Cancellation token and progress of one long-running operation. The operation's loops call {@link #worked(long)}
+ * (or {@link #checkCancelled()}), which ends the operation with a {@link CancellationException} once {@link #cancel()} was called.
+ * The listener receives the progress (0 to 1) from the worker threads, and only when it moved by at least a percent.
+ */
+public class OperationMonitor {
+
+    private final DoubleConsumer progressListener; // null if nobody follows the progress
+    private final AtomicLong done = new AtomicLong();
+    private volatile long total = 0;
+    private volatile int reportedPercent = -1;
+    private volatile boolean cancelled = false;
+
+    public OperationMonitor(DoubleConsumer progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void checkCancelled() {
+        if (cancelled)
+            throw new CancellationException();
+    }
+
+    /**
+     * Starts counting the progress of a (next) phase of the operation from zero.
+     */
+    public void setTotal(long total) {
+        this.total = total;
+        done.set(0);
+        report(0);
+    }
+
+    public void worked(long amount) {
+        checkCancelled();
+        report(done.addAndGet(amount));
+    }
+
+    public void setDone(long amount) {
+        checkCancelled();
+        done.set(amount);
+        report(amount);
+    }
+
+    private void report(long amount) {
+        long currentTotal = total;
+        if (progressListener == null || currentTotal <= 0)
+            return;
+        int percent = (int) (Math.min(amount, currentTotal) * 100 / currentTotal);
+        if (percent == reportedPercent)
+            return;
+        reportedPercent = percent;
+        progressListener.accept(percent / 100.0);
+    }
+}
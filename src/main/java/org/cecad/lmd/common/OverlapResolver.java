@@ -0,0 +1,196 @@
+package org.cecad.lmd.common;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.quadtree.Quadtree;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+
+import java.util.*;
+
+/**
+ * Resolves conflicting objects after expansion: merge, discard one or discard both depending on their classes and priorities.
+ * Objects conflict when they intersect or, with a minimum gap set (e.g. the laser aperture), when they are closer than the gap.
+ * Candidates come from a dynamic spatial index, so each object is only tested against its neighbours.
+ */
+public class OverlapResolver {
+
+    private final boolean mergeSameClass;
+    private final ClassIndex classIndex;
+    private final int[] priorityRanks; // null if no priority ranking was set
+    private final double gapPixels;
+    private final Random random = new Random();
+
+    private final Quadtree index = new Quadtree();
+    private final Map<PathObject, Entry> entries = new HashMap<>();
+    private final LinkedHashSet<PathObject> remainingObjects = new LinkedHashSet<>();
+    private long nextOrder = 0;
+    private int gapConflictsResolved = 0;
+
+    private static class Entry {
+        final Geometry geometry;
+        final Envelope envelope;
+        long order; // position in the processing queue, candidates are visited in this order
+
+        Entry(Geometry geometry, long order) {
+            this.geometry = geometry;
+            this.envelope = geometry.getEnvelopeInternal();
+            this.order = order;
+        }
+    }
+
+    public OverlapResolver(boolean mergeSameClass, ClassIndex classIndex, int[] priorityRanks, double gapPixels) {
+        this.mergeSameClass = mergeSameClass;
+        this.classIndex = classIndex;
+        this.priorityRanks = priorityRanks;
+        this.gapPixels = gapPixels;
+    }
+
+    public Collection<PathObject> resolve(Collection<PathObject> objects, OperationMonitor monitor) {
+        for (PathObject object : objects)
+            enqueue(object);
+
+        // Merged and re-queued objects make the queue grow back, so the progress is only approximate
+        monitor.setTotal(objects.size());
+        Collection<PathObject> objectsToAddToHierarchy = new ArrayList<>();
+        while (!remainingObjects.isEmpty()) {
+            processNext(objectsToAddToHierarchy);
+            monitor.setDone(objects.size() - remainingObjects.size());
+        }
+        return objectsToAddToHierarchy;
+    }
+
+    public int getGapConflictsResolved() {
+        return gapConflictsResolved;
+    }
+
+    private void enqueue(PathObject object) {
+        if (remainingObjects.contains(object))
+            return;
+        Entry entry = entries.get(object);
+        if (entry == null) {
+            entry = new Entry(object.getROI().getGeometry(), nextOrder++);
+            entries.put(object, entry);
+        }
+        else
+            entry.order = nextOrder++; // re-queued objects go to the back, as they are re-added to the end of the queue
+        remainingObjects.add(object);
+        index.insert(entry.envelope, object);
+    }
+
+    private void dequeue(PathObject object) {
+        if (remainingObjects.remove(object))
+            index.remove(entries.get(object).envelope, object);
+    }
+
+    private List<PathObject> getCandidates(Entry entry) {
+        Envelope searchEnvelope = new Envelope(entry.envelope);
+        if (gapPixels > 0)
+            searchEnvelope.expandBy(gapPixels);
+        List<PathObject> candidates = new ArrayList<>();
+        for (Object candidate : index.query(searchEnvelope)) {
+            PathObject candidateObject = (PathObject) candidate;
+            if (remainingObjects.contains(candidateObject) && entries.get(candidateObject).envelope.intersects(searchEnvelope))
+                candidates.add(candidateObject);
+        }
+        candidates.sort(Comparator.comparingLong(o -> entries.get(o).order));
+        return candidates;
+    }
+
+    private void processNext(Collection<PathObject> objectsToAddToHierarchy) {
+        PathObject object = remainingObjects.iterator().next();
+        Entry entry = entries.get(object);
+        PathClass objectClass = object.getPathClass();
+        int objectClassID = classIndex.intern(objectClass);
+        dequeue(object); // removed now so there will be no intersection with itself check
+
+        Collection<PathObject> objectsToRemoveFromProcessed = new ArrayList<>();
+        Collection<PathObject> objectsToAddToProcessed = new ArrayList<>();
+        PathObject objectToMergeWith = null;
+        boolean isGapMerge = false;
+        boolean isOverlapping = false;
+
+        for (PathObject otherObject : getCandidates(entry)) {
+            Geometry otherGeometry = entries.get(otherObject).geometry;
+            boolean intersects = entry.geometry.intersects(otherGeometry);
+            if (!intersects && (gapPixels <= 0 || !entry.geometry.isWithinDistance(otherGeometry, gapPixels)))
+                continue;
+
+            isOverlapping = true;
+            if (!intersects)
+                gapConflictsResolved++;
+
+            // Same class means the same PathClass, "Tumor: Positive" and "Stroma: Positive" differ; IDs (by name) only give the rank
+            PathClass otherObjectClass = otherObject.getPathClass();
+            int otherObjectClassID = classIndex.intern(otherObjectClass);
+            if (objectClass == otherObjectClass) {
+                if (mergeSameClass) {
+                    objectToMergeWith = otherObject;
+                    isGapMerge = !intersects;
+                }
+                else {
+                    if (random.nextBoolean()) {
+                        objectsToRemoveFromProcessed.add(object);
+                        objectsToAddToProcessed.add(otherObject);
+                    } else {
+                        objectsToRemoveFromProcessed.add(otherObject);
+                        objectsToAddToProcessed.add(object);
+                    }
+                }
+                break;
+            }
+            else {
+                if (priorityRanks == null) {
+                    objectsToRemoveFromProcessed.add(object);
+                    objectsToRemoveFromProcessed.add(otherObject);
+                    break;
+                }
+                int objectIndex = classIndex.getRank(priorityRanks, objectClassID);
+                int otherObjectIndex = classIndex.getRank(priorityRanks, otherObjectClassID);
+                if (objectIndex < otherObjectIndex) { // lower index -> higher priority
+                    objectsToRemoveFromProcessed.add(otherObject); // deleting other, non-priority, conflicting object
+                    /*
+                    This is the only case when we don't break the loop, after it is finished,
+                    we are sure the object doesn't conflict with a different class object,
+                    still may conflict with same class object though, so we add it back to processed.
+                    */
+                    if (!objectsToAddToProcessed.contains(object))
+                        objectsToAddToProcessed.add(object);
+                }
+                else if (otherObjectIndex < objectIndex) {
+                    // The object is non-priority and conflicts with a priority object, it has already been dequeued
+                    break;
+                }
+            }
+        }
+
+        if (!isOverlapping) {
+            objectsToAddToHierarchy.add(object);
+            return;
+        }
+
+        if (objectToMergeWith != null) {
+            dequeue(objectToMergeWith);
+            enqueue(mergeObjects(object, objectToMergeWith, objectClass, isGapMerge));
+            return;
+        }
+
+        for (PathObject objectToRemove : objectsToRemoveFromProcessed)
+            dequeue(objectToRemove);
+        for (PathObject objectToAdd : objectsToAddToProcessed)
+            enqueue(objectToAdd);
+    }
+
+    private PathObject mergeObjects(PathObject object, PathObject otherObject, PathClass objectClass, boolean bridgeGap) {
+        if (!bridgeGap)
+            return ObjectUtils.mergeObjects(List.of(object, otherObject), objectClass);
+
+        // The shapes don't touch, close the gap between them so the merged shape is cut as one outline
+        Geometry union = entries.get(object).geometry.union(entries.get(otherObject).geometry);
+        Geometry bridged = union.buffer(gapPixels / 2).buffer(-gapPixels / 2);
+        return PathObjects.createDetectionObject(GeometryTools.geometryToROI(bridged, ImagePlane.getPlane(object.getROI())), objectClass);
+    }
+}
@@ -0,0 +1,256 @@
+package org.cecad.lmd.common;
+
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.util.PolygonExtracter;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact, immutable copy of a ROI's vertices.
+ * All coordinates live in one interleaved x/y array, rings are described by their end offsets only,
+ * so a shape costs roughly 16 bytes per vertex instead of a full JTS/ROI object graph.
+ */
+public class PackedGeometry {
+
+    public static final byte POLYGONAL = 0;
+    public static final byte PUNTAL = 1;
+    public static final byte LINEAL = 2;
+
+    private final byte kind;
+    private final double[] xy; // interleaved x, y; rings are stored without the closing point
+    private final int[] ringEnds; // exclusive end (in points) of each ring
+    private final int[] polygonRings; // number of rings of each polygon, the first one being the shell
+    private final ImagePlane plane;
+
+    private PackedGeometry(byte kind, double[] xy, int[] ringEnds, int[] polygonRings, ImagePlane plane) {
+        this.kind = kind;
+        this.xy = xy;
+        this.ringEnds = ringEnds;
+        this.polygonRings = polygonRings;
+        this.plane = plane;
+    }
+
+    public static PackedGeometry fromROI(ROI roi) {
+        return fromGeometry(roi.getGeometry(), ImagePlane.getPlane(roi));
+    }
+
+    public static PackedGeometry fromGeometry(Geometry geometry, ImagePlane plane) {
+        List<Coordinate[]> rings = new ArrayList<>();
+        List<Integer> polygonRingsList = new ArrayList<>();
+        byte kind;
+
+        if (geometry instanceof Puntal) {
+            kind = PUNTAL;
+            rings.add(geometry.getCoordinates());
+        }
+        else if (geometry instanceof Lineal) {
+            kind = LINEAL;
+            for (int i = 0; i < geometry.getNumGeometries(); i++)
+                rings.add(geometry.getGeometryN(i).getCoordinates());
+        }
+        else {
+            // Polygons, multipolygons and mixed collections - only the areas matter for cutting
+            kind = POLYGONAL;
+            for (Object part : PolygonExtracter.getPolygons(geometry)) {
+                Polygon polygon = (Polygon) part;
+                rings.add(openRing(polygon.getExteriorRing().getCoordinates()));
+                for (int r = 0; r < polygon.getNumInteriorRing(); r++)
+                    rings.add(openRing(polygon.getInteriorRingN(r).getCoordinates()));
+                polygonRingsList.add(polygon.getNumInteriorRing() + 1);
+            }
+        }
+
+        int pointCount = 0;
+        for (Coordinate[] ring : rings)
+            pointCount += ring.length;
+
+        double[] xy = new double[pointCount * 2];
+        int[] ringEnds = new int[rings.size()];
+        int p = 0;
+        for (int r = 0; r < rings.size(); r++) {
+            for (Coordinate c : rings.get(r)) {
+                xy[p * 2] = c.x;
+                xy[p * 2 + 1] = c.y;
+                p++;
+            }
+            ringEnds[r] = p;
+        }
+        int[] polygonRings = polygonRingsList.stream().mapToInt(Integer::intValue).toArray();
+        return new PackedGeometry(kind, xy, ringEnds, polygonRings, plane);
+    }
+
+    private static Coordinate[] openRing(Coordinate[] closedRing) {
+        if (closedRing.length > 1 && closedRing[0].equals2D(closedRing[closedRing.length - 1])) {
+            Coordinate[] open = new Coordinate[closedRing.length - 1];
+            System.arraycopy(closedRing, 0, open, 0, open.length);
+            return open;
+        }
+        return closedRing;
+    }
+
+    /**
+     * Returns a new packed geometry with all vertices transformed in a single pass; ring structure is shared.
+     */
+    public PackedGeometry transform(AffineTransform transform) {
+        double[] transformed = new double[xy.length];
+        transform.transform(xy, 0, transformed, 0, xy.length / 2);
+        return new PackedGeometry(kind, transformed, ringEnds, polygonRings, plane);
+    }
+
+    /**
+     * Returns a new packed geometry with the vertices of each ring (or line) redistributed at equal distances along its outline,
+     * as close to step as the ring's length allows. Points are returned as they are.
+     */
+    public PackedGeometry resample(double step) {
+        if (kind == PUNTAL || step <= 0)
+            return this;
+        boolean closed = kind == POLYGONAL;
+        int[] newRingEnds = new int[ringEnds.length];
+        int[] counts = new int[ringEnds.length];
+        int total = 0;
+        for (int r = 0; r < ringEnds.length; r++) {
+            double length = ringLength(r, closed);
+            int minPoints = closed ? 3 : 2;
+            // A closed ring of n points has n segments, an open line of n points has n - 1
+            counts[r] = Math.max(minPoints, (int) Math.round(length / step) + (closed ? 0 : 1));
+            total += counts[r];
+            newRingEnds[r] = total;
+        }
+        double[] resampled = new double[total * 2];
+        int offset = 0;
+        for (int r = 0; r < ringEnds.length; r++) {
+            resampleRing(r, closed, counts[r], resampled, offset);
+            offset += counts[r] * 2;
+        }
+        return new PackedGeometry(kind, resampled, newRingEnds, polygonRings, plane);
+    }
+
+    private double ringLength(int ring, boolean closed) {
+        int start = getRingStart(ring);
+        int end = ringEnds[ring];
+        double length = 0;
+        int last = closed ? end : end - 1;
+        for (int i = start; i < last; i++) {
+            int next = i + 1 < end ? i + 1 : start;
+            length += Math.hypot(xy[next * 2] - xy[i * 2], xy[next * 2 + 1] - xy[i * 2 + 1]);
+        }
+        return length;
+    }
+
+    private void resampleRing(int ring, boolean closed, int count, double[] output, int offset) {
+        int start = getRingStart(ring);
+        int end = ringEnds[ring];
+        int segments = closed ? end - start : end - start - 1;
+        double length = ringLength(ring, closed);
+        double spacing = length / (closed ? count : count - 1);
+
+        output[offset] = xy[start * 2];
+        output[offset + 1] = xy[start * 2 + 1];
+        int written = 1;
+        double target = spacing;
+        double travelled = 0;
+        for (int s = 0; s < segments && written < count; s++) {
+            int i = start + s;
+            int next = i + 1 < end ? i + 1 : start;
+            double x0 = xy[i * 2], y0 = xy[i * 2 + 1];
+            double dx = xy[next * 2] - x0, dy = xy[next * 2 + 1] - y0;
+            double segmentLength = Math.hypot(dx, dy);
+            while (written < count && target <= travelled + segmentLength) {
+                double t = segmentLength == 0 ? 0 : (target - travelled) / segmentLength;
+                output[offset + written * 2] = x0 + t * dx;
+                output[offset + written * 2 + 1] = y0 + t * dy;
+                written++;
+                target += spacing;
+            }
+            travelled += segmentLength;
+        }
+        // Rounding can leave the last point(s) unplaced, they go to the end of the outline
+        int lastIndex = closed ? start : end - 1;
+        for (; written < count; written++) {
+            output[offset + written * 2] = xy[lastIndex * 2];
+            output[offset + written * 2 + 1] = xy[lastIndex * 2 + 1];
+        }
+    }
+
+    public Geometry toGeometry(GeometryFactory factory) {
+        switch (kind) {
+            case PUNTAL -> {
+                return factory.createMultiPointFromCoords(ringCoordinates(0, false));
+            }
+            case LINEAL -> {
+                if (ringEnds.length == 1)
+                    return factory.createLineString(ringCoordinates(0, false));
+                LineString[] lines = new LineString[ringEnds.length];
+                for (int r = 0; r < ringEnds.length; r++)
+                    lines[r] = factory.createLineString(ringCoordinates(r, false));
+                return factory.createMultiLineString(lines);
+            }
+            default -> {
+                Polygon[] polygons = new Polygon[polygonRings.length];
+                int ring = 0;
+                for (int i = 0; i < polygonRings.length; i++) {
+                    LinearRing shell = factory.createLinearRing(ringCoordinates(ring++, true));
+                    LinearRing[] holes = new LinearRing[polygonRings[i] - 1];
+                    for (int h = 0; h < holes.length; h++)
+                        holes[h] = factory.createLinearRing(ringCoordinates(ring++, true));
+                    polygons[i] = factory.createPolygon(shell, holes);
+                }
+                if (polygons.length == 1)
+                    return polygons[0];
+                return factory.createMultiPolygon(polygons);
+            }
+        }
+    }
+
+    public ROI toROI() {
+        return GeometryTools.geometryToROI(toGeometry(GeometryTools.getDefaultFactory()), plane);
+    }
+
+    private Coordinate[] ringCoordinates(int ring, boolean close) {
+        int start = ring == 0 ? 0 : ringEnds[ring - 1];
+        int end = ringEnds[ring];
+        int n = end - start;
+        Coordinate[] coords = new Coordinate[close ? n + 1 : n];
+        for (int i = 0; i < n; i++)
+            coords[i] = new Coordinate(xy[(start + i) * 2], xy[(start + i) * 2 + 1]);
+        if (close)
+            coords[n] = coords[0].copy();
+        return coords;
+    }
+
+    public int getVertexCount() {
+        return xy.length / 2;
+    }
+
+    public int getRingCount() {
+        return ringEnds.length;
+    }
+
+    public int getRingStart(int ring) {
+        return ring == 0 ? 0 : ringEnds[ring - 1];
+    }
+
+    public int getRingEnd(int ring) {
+        return ringEnds[ring];
+    }
+
+    /**
+     * Direct access to the interleaved coordinates, not copied - do not modify.
+     */
+    public double[] getCoordinates() {
+        return xy;
+    }
+
+    public ImagePlane getPlane() {
+        return plane;
+    }
+
+    public long estimateBytes() {
+        return 48L + xy.length * 8L + ringEnds.length * 4L + polygonRings.length * 4L;
+    }
+}
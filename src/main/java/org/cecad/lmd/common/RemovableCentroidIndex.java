@@ -0,0 +1,81 @@
+package org.cecad.lmd.common;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.quadtree.Quadtree;
+import qupath.lib.objects.PathObject;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Centroids of a fixed set of objects, for walks that visit each object once (e.g. the nearest neighbour tour of an export).
+ * Visited objects are removed, so the searches only ever look at what is left and the bounds are those of this set alone.
+ * Made by {@link SpatialIndexService#createRemovableCentroidIndex(java.util.Collection)}, not thread-safe.
+ */
+public class RemovableCentroidIndex {
+
+    private static final double INITIAL_SEARCH_RADIUS = 256;
+
+    private final Quadtree index = new Quadtree();
+    private final Map<PathObject, Envelope> points = new IdentityHashMap<>();
+    private final Envelope bounds = new Envelope();
+
+    void insert(PathObject object, double centroidX, double centroidY) {
+        Envelope point = new Envelope(centroidX, centroidX, centroidY, centroidY);
+        if (points.putIfAbsent(object, point) != null)
+            return;
+        index.insert(point, object);
+        bounds.expandToInclude(point);
+    }
+
+    public boolean remove(PathObject object) {
+        Envelope point = points.remove(object);
+        return point != null && index.remove(point, object);
+    }
+
+    public boolean contains(PathObject object) {
+        return points.containsKey(object);
+    }
+
+    public boolean isEmpty() {
+        return points.isEmpty();
+    }
+
+    public int size() {
+        return points.size();
+    }
+
+    /**
+     * @return the object with the closest centroid among those left, null if none is left.
+     * The search window grows until the best candidate found is guaranteed to be the nearest one.
+     */
+    public PathObject getNearest(double x, double y) {
+        if (points.isEmpty())
+            return null;
+        double maxRadius = Math.max(Math.max(Math.abs(x - bounds.getMinX()), Math.abs(x - bounds.getMaxX())),
+                Math.max(Math.abs(y - bounds.getMinY()), Math.abs(y - bounds.getMaxY())));
+        for (double radius = INITIAL_SEARCH_RADIUS; ; radius *= 2) {
+            Envelope window = new Envelope(x - radius, x + radius, y - radius, y + radius);
+            PathObject nearest = null;
+            double nearestDistanceSq = Double.POSITIVE_INFINITY;
+            for (Object candidate : index.query(window)) {
+                PathObject object = (PathObject) candidate;
+                Envelope point = points.get(object);
+                if (point == null)
+                    continue;
+                double dx = point.getMinX() - x;
+                double dy = point.getMinY() - y;
+                double distanceSq = dx * dx + dy * dy;
+                if (distanceSq < nearestDistanceSq) {
+                    nearestDistanceSq = distanceSq;
+                    nearest = object;
+                }
+            }
+            // Anything closer would have had its centroid inside the window
+            if (nearest != null && nearestDistanceSq <= radius * radius)
+                return nearest;
+            if (radius > maxRadius)
+                return nearest;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.cecad.lmd.common;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.strtree.ItemBoundable;
+import org.locationtech.jts.index.strtree.ItemDistance;
+import org.locationtech.jts.index.strtree.STRtree;
+import qupath.lib.objects.PathObject;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Largest expansion radius each object can take while keeping a minimum gap to its neighbours.
+ * Two selected neighbours both grow, so they share the free space between them; a not selected neighbour stays as it is.
+ */
+public class SafeRadiusAnalysis {
+
+    public static final String MEASUREMENT_NAME = "QuCut: Max safe expansion radius (microns)";
+
+    private record Node(Geometry geometry, boolean growing) {}
+
+    private static final ItemDistance BOUNDARY_DISTANCE = (ItemBoundable item1, ItemBoundable item2) ->
+            ((Node) item1.getItem()).geometry().distance(((Node) item2.getItem()).geometry());
+
+    /**
+     * @param objects objects which are going to be expanded
+     * @param background objects around them which stay as they are
+     * @return safe radius in pixels for each of the objects, in their order
+     */
+    public static double[] computeSafeRadii(List<PathObject> objects, Collection<PathObject> background, double gapPixels,
+                                            OperationMonitor monitor) {
+        STRtree index = new STRtree();
+        Node[] nodes = new Node[objects.size()];
+        for (int i = 0; i < objects.size(); i++) {
+            nodes[i] = new Node(objects.get(i).getROI().getGeometry(), true);
+            index.insert(nodes[i].geometry().getEnvelopeInternal(), nodes[i]);
+        }
+        for (PathObject object : background) {
+            Node node = new Node(object.getROI().getGeometry(), false);
+            index.insert(node.geometry().getEnvelopeInternal(), node);
+        }
+        index.build(); // queried concurrently from here on
+
+        double[] safeRadii = new double[objects.size()];
+        boolean hasNeighbours = objects.size() + background.size() > 1;
+        monitor.setTotal(nodes.length);
+        IntStream.range(0, nodes.length).parallel().forEach(i -> {
+            Node node = nodes[i];
+            double safeRadius = Double.POSITIVE_INFINITY;
+            if (hasNeighbours) {
+                // The nearest neighbour gives a first bound, but a farther one that doesn't grow can be more limiting,
+                // so every neighbour that could still lower the bound (closer than 2 * bound + gap) is checked
+                Object[] nearest = index.nearestNeighbour(node.geometry().getEnvelopeInternal(), node, BOUNDARY_DISTANCE, 2);
+                for (Object neighbour : nearest)
+                    safeRadius = Math.min(safeRadius, getSafeRadius(node, (Node) neighbour, gapPixels));
+                if (!Double.isInfinite(safeRadius)) {
+                    Envelope searchEnvelope = new Envelope(node.geometry().getEnvelopeInternal());
+                    searchEnvelope.expandBy(2 * Math.max(0, safeRadius) + gapPixels);
+                    for (Object neighbour : index.query(searchEnvelope))
+                        safeRadius = Math.min(safeRadius, getSafeRadius(node, (Node) neighbour, gapPixels));
+                }
+            }
+            safeRadii[i] = Math.max(0, safeRadius);
+            monitor.worked(1);
+        });
+        return safeRadii;
+    }
+
+    private static double getSafeRadius(Node node, Node other, double gapPixels) {
+        if (other == node)
+            return Double.POSITIVE_INFINITY;
+        double freeSpace = node.geometry().distance(other.geometry()) - gapPixels;
+        return other.growing() ? freeSpace / 2 : freeSpace;
+    }
+}
@@ -0,0 +1,212 @@
+package org.cecad.lmd.common;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.PolygonROI;
+import qupath.lib.roi.ShapeSimplifier;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.*;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Shape simplification of many objects at once. Objects (or groups of touching objects) are processed in parallel
+ * and only the results are handed back, the caller applies them to the hierarchy in one go.
+ */
+public class SimplificationUtils {
+
+    private static final int BINARY_SEARCH_STEPS = 20;
+    private static final double AREA_EPSILON = 1e-6;
+
+    public static ROI[] simplifyAll(List<PathObject> objects, UnaryOperator<ROI> simplifier, OperationMonitor monitor) {
+        ROI[] results = new ROI[objects.size()];
+        monitor.setTotal(objects.size());
+        IntStream.range(0, objects.size()).parallel().forEach(i -> {
+            results[i] = simplifier.apply(objects.get(i).getROI());
+            monitor.worked(1);
+        });
+        return results;
+    }
+
+    public static ROI simplify(ROI roi, double altitudeThreshold) {
+        if (roi instanceof PolygonROI polygonROI)
+            return ShapeSimplifier.simplifyPolygon(polygonROI, altitudeThreshold);
+        return ShapeSimplifier.simplifyShape(roi, altitudeThreshold);
+    }
+
+    /**
+     * Simplifies with the smallest altitude threshold (found by binary search) which brings the shape down to maxPoints vertices.
+     * Shapes that already have few enough vertices are returned as they are, they don't lose any detail.
+     */
+    public static ROI simplifyToVertexBudget(ROI roi, int maxPoints) {
+        if (roi.getNumPoints() <= maxPoints)
+            return roi;
+        double low = 0;
+        double high = Math.max(roi.getBoundsWidth(), roi.getBoundsHeight());
+        ROI best = simplify(roi, high);
+        if (best.getNumPoints() > maxPoints)
+            return best; // can't get any simpler than this
+        for (int i = 0; i < BINARY_SEARCH_STEPS; i++) {
+            double altitude = (low + high) / 2;
+            ROI candidate = simplify(roi, altitude);
+            if (candidate.getNumPoints() <= maxPoints) {
+                best = candidate;
+                high = altitude;
+            }
+            else
+                low = altitude;
+        }
+        return best;
+    }
+
+    /**
+     * Redistributes the vertices of each contour at a fixed step (in pixels), the laser then cuts segments of equal length.
+     * Shapes which would become invalid (outline crossing itself) keep their original vertices.
+     */
+    public static ROI resample(ROI roi, double stepPixels) {
+        PackedGeometry resampled = PackedGeometry.fromROI(roi).resample(stepPixels);
+        Geometry geometry = resampled.toGeometry(GeometryTools.getDefaultFactory());
+        if (!geometry.isValid())
+            return roi;
+        return GeometryTools.geometryToROI(geometry, resampled.getPlane());
+    }
+
+    /**
+     * Simplifies spatially connected groups of shapes together with JTS' topology-preserving simplifier, so that the borders of shapes
+     * touching each other (e.g. after expansion or Voronoi clipping) mostly stay aligned.
+     * Groups run in parallel. Any pair of shapes that would overlap more after simplification than before keeps its original outlines,
+     * and so does a shape that would overlap one of the background objects more. Small gaps can still open where a shared border
+     * is simplified differently on each side, or towards the background, which isn't simplified.
+     * @param background objects close to the simplified ones which stay as they are, e.g. unselected neighbours
+     */
+    public static ROI[] simplifyPreservingTopology(List<PathObject> objects, Collection<PathObject> background, double tolerance,
+                                                   OperationMonitor monitor) {
+        int n = objects.size();
+        Geometry[] originals = new Geometry[n];
+        STRtree index = new STRtree();
+        for (int i = 0; i < n; i++) {
+            originals[i] = objects.get(i).getROI().getGeometry();
+            index.insert(originals[i].getEnvelopeInternal(), i);
+        }
+        index.build(); // queried concurrently from here on
+        STRtree backgroundIndex = new STRtree();
+        for (PathObject object : background) {
+            Geometry geometry = object.getROI().getGeometry();
+            backgroundIndex.insert(geometry.getEnvelopeInternal(), geometry);
+        }
+        backgroundIndex.build();
+
+        // Shapes closer than the tolerance can run into each other once simplified, they belong to the same group
+        int[] parents = IntStream.range(0, n).toArray();
+        for (int i = 0; i < n; i++) {
+            monitor.checkCancelled();
+            Envelope envelope = new Envelope(originals[i].getEnvelopeInternal());
+            envelope.expandBy(tolerance);
+            for (Object candidate : index.query(envelope)) {
+                int j = (Integer) candidate;
+                if (j > i && originals[i].isWithinDistance(originals[j], tolerance))
+                    union(parents, i, j);
+            }
+        }
+        Map<Integer, List<Integer>> groups = new HashMap<>();
+        for (int i = 0; i < n; i++)
+            groups.computeIfAbsent(find(parents, i), root -> new ArrayList<>()).add(i);
+
+        Geometry[] simplified = new Geometry[n];
+        GeometryFactory factory = GeometryTools.getDefaultFactory();
+        monitor.setTotal(n);
+        groups.values().parallelStream().forEach(group -> {
+            simplifyGroup(group, originals, simplified, backgroundIndex, tolerance, factory, monitor);
+            monitor.worked(group.size());
+        });
+
+        ROI[] results = new ROI[n];
+        for (int i = 0; i < n; i++) {
+            ROI roi = objects.get(i).getROI();
+            results[i] = simplified[i] == originals[i] ? roi : GeometryTools.geometryToROI(simplified[i], ImagePlane.getPlane(roi));
+        }
+        return results;
+    }
+
+    private static void simplifyGroup(List<Integer> group, Geometry[] originals, Geometry[] simplified, STRtree backgroundIndex,
+                                      double tolerance, GeometryFactory factory, OperationMonitor monitor) {
+        Geometry[] members = new Geometry[group.size()];
+        for (int k = 0; k < members.length; k++)
+            members[k] = originals[group.get(k)];
+        // Simplified as one collection, so every ring is checked against the segments of all the others
+        Geometry result = TopologyPreservingSimplifier.simplify(factory.createGeometryCollection(members), tolerance);
+        boolean structureKept = result.getNumGeometries() == members.length;
+        for (int k = 0; k < members.length; k++) {
+            Geometry candidate = structureKept ? result.getGeometryN(k) : null;
+            simplified[group.get(k)] = candidate == null || candidate.isEmpty() || !candidate.isValid() ? originals[group.get(k)] : candidate;
+        }
+
+        // Shared borders are not always simplified identically, revert the pairs which would now overlap,
+        // and the shapes which would now overlap a background object (these are never simplified)
+        // Simplified outlines stay within the envelopes of the originals, so these cover both versions
+        STRtree groupIndex = new STRtree();
+        for (int index : group)
+            groupIndex.insert(originals[index].getEnvelopeInternal(), index);
+        boolean reverted = true;
+        while (reverted) {
+            reverted = false;
+            for (int i : group) {
+                monitor.checkCancelled();
+                if (simplified[i] != originals[i]) {
+                    for (Object candidate : backgroundIndex.query(originals[i].getEnvelopeInternal())) {
+                        Geometry other = (Geometry) candidate;
+                        if (createsNewOverlap(originals[i], other, simplified[i], other)) {
+                            simplified[i] = originals[i];
+                            reverted = true;
+                            break;
+                        }
+                    }
+                }
+                for (Object candidate : groupIndex.query(originals[i].getEnvelopeInternal())) {
+                    int j = (Integer) candidate;
+                    if (j <= i || !createsNewOverlap(originals[i], originals[j], simplified[i], simplified[j]))
+                        continue;
+                    simplified[i] = originals[i];
+                    simplified[j] = originals[j];
+                    reverted = true;
+                }
+            }
+        }
+    }
+
+    private static boolean createsNewOverlap(Geometry original1, Geometry original2, Geometry simplified1, Geometry simplified2) {
+        if (simplified1 == original1 && simplified2 == original2)
+            return false;
+        if (!simplified1.intersects(simplified2))
+            return false;
+        double overlapBefore = original1.intersects(original2) ? original1.intersection(original2).getArea() : 0;
+        return simplified1.intersection(simplified2).getArea() > overlapBefore + AREA_EPSILON;
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parents, int i, int j) {
+        parents[find(parents, i)] = find(parents, j);
+    }
+
+    public static long countPoints(ROI[] rois) {
+        long count = 0;
+        for (ROI roi : rois)
+            count += roi.getNumPoints();
+        return count;
+    }
+}
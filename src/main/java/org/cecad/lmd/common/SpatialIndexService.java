@@ -0,0 +1,268 @@
+package org.cecad.lmd.common;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.quadtree.Quadtree;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * One spatial index of detection envelopes and centroids per image, shared by all QuCut operations.
+ * It is built on first use and then kept up to date from hierarchy events, objects are inserted and removed one by one
+ * instead of the whole index being rebuilt. Released when the image is closed (see {@link #release(ImageData)}).
+ */
+public class SpatialIndexService implements PathObjectHierarchyListener {
+
+    private static final Map<ImageData<?>, SpatialIndexService> services = new WeakHashMap<>();
+
+    private final PathObjectHierarchy hierarchy;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Quadtree index = null; // null until first used
+    private final Map<PathObject, Entry> entries = new HashMap<>();
+    private boolean changedDuringBuild = false; // guarded by lock, set by events which arrive before the index is in place
+
+    private record Entry(Envelope envelope, double centroidX, double centroidY, int z, int t) {}
+
+    private SpatialIndexService(PathObjectHierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+        hierarchy.addListener(this);
+    }
+
+    public static synchronized SpatialIndexService getInstance(ImageData<?> imageData) {
+        return services.computeIfAbsent(imageData, data -> new SpatialIndexService(data.getHierarchy()));
+    }
+
+    public static synchronized void release(ImageData<?> imageData) {
+        SpatialIndexService service = services.remove(imageData);
+        if (service != null)
+            service.hierarchy.removeListener(service);
+    }
+
+    // The hierarchy is only read without holding the lock: its events are dispatched while it is locked itself,
+    // so calling into it under the write lock could deadlock with an edit made at the same time
+    private void ensureBuilt() {
+        lock.readLock().lock();
+        boolean built = index != null;
+        lock.readLock().unlock();
+        if (built)
+            return;
+
+        lock.writeLock().lock();
+        changedDuringBuild = false;
+        lock.writeLock().unlock();
+
+        List<PathObject> detections = new ArrayList<>(hierarchy.getDetectionObjects());
+        Quadtree newIndex = new Quadtree();
+        Map<PathObject, Entry> newEntries = new HashMap<>();
+        for (PathObject object : detections) {
+            Entry entry = createEntry(object);
+            if (entry != null && newEntries.putIfAbsent(object, entry) == null)
+                newIndex.insert(entry.envelope(), object);
+        }
+
+        boolean resync;
+        lock.writeLock().lock();
+        try {
+            if (index != null)
+                return; // built by another thread in the meantime
+            index = newIndex;
+            entries.putAll(newEntries);
+            resync = changedDuringBuild;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // Events that arrived while the snapshot was indexed were dropped, catch up with a new snapshot
+        if (resync)
+            syncWithHierarchy(new ArrayList<>(hierarchy.getDetectionObjects()));
+    }
+
+    private static Entry createEntry(PathObject object) {
+        ROI roi = object.getROI();
+        if (roi == null)
+            return null;
+        Envelope envelope = new Envelope(roi.getBoundsX(), roi.getBoundsX() + roi.getBoundsWidth(),
+                roi.getBoundsY(), roi.getBoundsY() + roi.getBoundsHeight());
+        return new Entry(envelope, roi.getCentroidX(), roi.getCentroidY(), roi.getZ(), roi.getT());
+    }
+
+    // Callers hold the write lock
+    private void insert(PathObject object, Entry entry) {
+        if (entry == null || entries.containsKey(object))
+            return;
+        entries.put(object, entry);
+        index.insert(entry.envelope(), object);
+    }
+
+    private void remove(PathObject object) {
+        Entry entry = entries.remove(object);
+        if (entry != null)
+            index.remove(entry.envelope(), object);
+    }
+
+    @Override
+    public void hierarchyChanged(PathObjectHierarchyEvent event) {
+        // Everything read from the objects and the hierarchy is collected first, the lock is only taken to apply it
+        List<PathObject> removed = new ArrayList<>();
+        Map<PathObject, Entry> added = new LinkedHashMap<>();
+        List<PathObject> current = null;
+        switch (event.getEventType()) {
+            case ADDED -> {
+                for (PathObject object : event.getChangedObjects())
+                    forEachDetection(object, detection -> added.put(detection, createEntry(detection)));
+            }
+            case REMOVED -> {
+                for (PathObject object : event.getChangedObjects())
+                    forEachDetection(object, removed::add);
+            }
+            case CHANGE_OTHER -> {
+                // e.g. ROIs modified in place, re-index with the new envelope
+                for (PathObject object : event.getChangedObjects()) {
+                    if (object.isDetection()) {
+                        removed.add(object);
+                        if (object.getParent() != null)
+                            added.put(object, createEntry(object));
+                    }
+                }
+            }
+            case OTHER_STRUCTURE_CHANGE -> current = new ArrayList<>(hierarchy.getDetectionObjects());
+            default -> {
+                return; // classification and measurement changes don't move objects
+            }
+        }
+
+        if (current != null) {
+            syncWithHierarchy(current);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (index == null) {
+                changedDuringBuild = true; // nothing to keep up to date yet, unless a build is running
+                return;
+            }
+            for (PathObject object : removed)
+                remove(object);
+            added.forEach(this::insert);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void forEachDetection(PathObject object, java.util.function.Consumer<PathObject> action) {
+        if (object.isDetection())
+            action.accept(object);
+        if (object.hasChildObjects()) {
+            for (PathObject child : object.getChildObjects())
+                forEachDetection(child, action);
+        }
+    }
+
+    // Batch additions and removals only report a structure change: apply the difference, don't rebuild the tree
+    private void syncWithHierarchy(List<PathObject> detections) {
+        Set<PathObject> current = Collections.newSetFromMap(new IdentityHashMap<>());
+        current.addAll(detections);
+        Map<PathObject, Entry> currentEntries = new HashMap<>();
+        for (PathObject object : current)
+            currentEntries.put(object, createEntry(object));
+
+        lock.writeLock().lock();
+        try {
+            if (index == null) {
+                changedDuringBuild = true;
+                return;
+            }
+            List<PathObject> removed = new ArrayList<>();
+            for (PathObject object : entries.keySet()) {
+                if (!current.contains(object))
+                    removed.add(object);
+            }
+            for (PathObject object : removed)
+                remove(object);
+            currentEntries.forEach(this::insert);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Detections whose bounding box intersects the envelope, optionally restricted to one image plane.
+     */
+    public List<PathObject> getDetectionsInEnvelope(Envelope envelope, ImagePlane plane) {
+        ensureBuilt();
+        lock.readLock().lock();
+        try {
+            List<PathObject> result = new ArrayList<>();
+            for (Object candidate : index.query(envelope)) {
+                PathObject object = (PathObject) candidate;
+                Entry entry = entries.get(object);
+                if (entry != null && entry.envelope().intersects(envelope) && isOnPlane(entry, plane))
+                    result.add(object);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<PathObject> getDetectionsInRegion(ImageRegion region) {
+        Envelope envelope = new Envelope(region.getMinX(), region.getMaxX(), region.getMinY(), region.getMaxY());
+        return getDetectionsInEnvelope(envelope, region.getImagePlane());
+    }
+
+    /**
+     * Detections closer than distance to the geometry (touching or overlapping included).
+     */
+    public List<PathObject> getDetectionsWithinDistance(Geometry geometry, double distance, ImagePlane plane) {
+        Envelope envelope = new Envelope(geometry.getEnvelopeInternal());
+        envelope.expandBy(distance);
+        List<PathObject> result = new ArrayList<>();
+        for (PathObject object : getDetectionsInEnvelope(envelope, plane)) {
+            if (geometry.isWithinDistance(object.getROI().getGeometry(), distance))
+                result.add(object);
+        }
+        return result;
+    }
+
+    /**
+     * Own copy of the centroids of the detections, from which visited objects can be removed without touching this index.
+     * Detections which are not in the hierarchy are left out.
+     */
+    public RemovableCentroidIndex createRemovableCentroidIndex(Collection<PathObject> detections) {
+        ensureBuilt();
+        RemovableCentroidIndex centroidIndex = new RemovableCentroidIndex();
+        lock.readLock().lock();
+        try {
+            for (PathObject object : detections) {
+                Entry entry = entries.get(object);
+                if (entry != null)
+                    centroidIndex.insert(object, entry.centroidX(), entry.centroidY());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return centroidIndex;
+    }
+
+    public int size() {
+        ensureBuilt();
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static boolean isOnPlane(Entry entry, ImagePlane plane) {
+        return plane == null || (entry.z() == plane.getZ() && entry.t() == plane.getT());
+    }
+}
@@ -0,0 +1,251 @@
+package org.cecad.lmd.common;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.PathROIObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/**
+ * Multi-level undo history for the More Options operations.
+ * Steps don't keep references to the objects they replaced, only compact snapshots (ID, class, name, color,
+ * measurements and packed ROI coordinates), and only a weak one to their hierarchy, so a closed image can be collected. When the estimated size exceeds the memory cap, the oldest steps are evicted first.
+ */
+public class UndoStack {
+
+    private final Deque<Step> steps = new ArrayDeque<>();
+    private long memoryCapBytes;
+    private long usedBytes = 0;
+
+    public UndoStack(long memoryCapBytes) {
+        this.memoryCapBytes = memoryCapBytes;
+    }
+
+    public synchronized void push(Step step) {
+        if (step.isEmpty())
+            return;
+        steps.push(step);
+        usedBytes += step.estimateBytes();
+        evictOldest();
+    }
+
+    public synchronized Step pop() {
+        Step step = steps.poll();
+        if (step != null)
+            usedBytes -= step.estimateBytes();
+        return step;
+    }
+
+    public synchronized void setMemoryCapBytes(long memoryCapBytes) {
+        this.memoryCapBytes = memoryCapBytes;
+        evictOldest();
+    }
+
+    private void evictOldest() {
+        // The latest step is always kept, even if on its own it is larger than the cap
+        while (steps.size() > 1 && usedBytes > memoryCapBytes)
+            usedBytes -= steps.removeLast().estimateBytes();
+    }
+
+    public synchronized int size() {
+        return steps.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return steps.isEmpty();
+    }
+
+    public synchronized void clear() {
+        steps.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public static class Step {
+        private final String operationName;
+        private final WeakReference<PathObjectHierarchy> hierarchy; // null for steps which don't edit a hierarchy
+        private final List<ObjectSnapshot> removedObjects = new ArrayList<>(); // re-added on undo
+        private final Set<UUID> addedObjectIDs = new HashSet<>(); // removed on undo
+        private final List<ObjectSnapshot> modifiedObjects = new ArrayList<>(); // ROI restored in place on undo
+        private Runnable customUndo = null;
+        private long bytes = 0;
+
+        public Step(String operationName, PathObjectHierarchy hierarchy) {
+            this.operationName = operationName;
+            this.hierarchy = hierarchy == null ? null : new WeakReference<>(hierarchy);
+        }
+
+        public void recordRemoved(Collection<PathObject> objects) {
+            for (PathObject object : objects) {
+                ObjectSnapshot snapshot = new ObjectSnapshot(object);
+                removedObjects.add(snapshot);
+                bytes += snapshot.estimateBytes();
+            }
+        }
+
+        public void recordAdded(Collection<PathObject> objects) {
+            for (PathObject object : objects)
+                addedObjectIDs.add(object.getID());
+            bytes += objects.size() * 32L;
+        }
+
+        public void recordModified(Collection<PathObject> objects) {
+            for (PathObject object : objects) {
+                ObjectSnapshot snapshot = new ObjectSnapshot(object);
+                modifiedObjects.add(snapshot);
+                bytes += snapshot.estimateBytes();
+            }
+        }
+
+        /**
+         * For operations that don't edit the hierarchy, e.g. flipping which opens a new image.
+         */
+        public void setCustomUndo(Runnable customUndo) {
+            this.customUndo = customUndo;
+        }
+
+        public String getOperationName() {
+            return operationName;
+        }
+
+        /**
+         * @return the hierarchy the step was recorded on, null if there is none or it was collected since (see {@link #isStale()})
+         */
+        public PathObjectHierarchy getHierarchy() {
+            return hierarchy == null ? null : hierarchy.get();
+        }
+
+        /**
+         * @return true if the step was recorded on a hierarchy which doesn't exist anymore, it can't be undone then
+         */
+        public boolean isStale() {
+            return hierarchy != null && hierarchy.get() == null;
+        }
+
+        public boolean isEmpty() {
+            return removedObjects.isEmpty() && addedObjectIDs.isEmpty() && modifiedObjects.isEmpty() && customUndo == null;
+        }
+
+        long estimateBytes() {
+            return bytes;
+        }
+
+        /**
+         * Reverts the step with one removal and one addition on the hierarchy, regardless of the number of objects.
+         */
+        public void restore() {
+            if (customUndo != null) {
+                customUndo.run();
+                return;
+            }
+            PathObjectHierarchy hierarchy = getHierarchy();
+            if (hierarchy == null)
+                return;
+
+            Map<UUID, ObjectSnapshot> modifiedByID = new HashMap<>();
+            for (ObjectSnapshot snapshot : modifiedObjects)
+                modifiedByID.put(snapshot.id, snapshot);
+
+            Collection<PathObject> objectsToRemove = new ArrayList<>();
+            Collection<PathObject> objectsModified = new ArrayList<>();
+            if (!addedObjectIDs.isEmpty() || !modifiedByID.isEmpty()) {
+                for (PathObject object : hierarchy.getAllObjects(false)) {
+                    UUID id = object.getID();
+                    if (addedObjectIDs.contains(id))
+                        objectsToRemove.add(object);
+                    else if (modifiedByID.containsKey(id) && object instanceof PathROIObject roiObject) {
+                        roiObject.setROI(modifiedByID.get(id).geometry.toROI());
+                        objectsModified.add(object);
+                    }
+                }
+            }
+
+            Collection<PathObject> objectsToAdd = new ArrayList<>(removedObjects.size());
+            for (ObjectSnapshot snapshot : removedObjects)
+                objectsToAdd.add(snapshot.toPathObject());
+
+            hierarchy.getSelectionModel().clearSelection();
+            if (!objectsToRemove.isEmpty())
+                hierarchy.removeObjects(objectsToRemove, true);
+            if (!objectsToAdd.isEmpty())
+                hierarchy.addObjects(objectsToAdd);
+            if (!objectsModified.isEmpty())
+                hierarchy.fireObjectsChangedEvent(hierarchy, objectsModified);
+        }
+    }
+
+    static class ObjectSnapshot {
+        private static final byte DETECTION = 0;
+        private static final byte CELL = 1;
+        private static final byte ANNOTATION = 2;
+
+        private final UUID id;
+        private final byte type;
+        private final PathClass pathClass;
+        private final String name;
+        private final Integer color;
+        private final PackedGeometry geometry;
+        private final PackedGeometry nucleusGeometry;
+        private final String[] measurementNames;
+        private final double[] measurementValues;
+
+        ObjectSnapshot(PathObject object) {
+            this.id = object.getID();
+            this.pathClass = object.getPathClass();
+            this.name = object.getName();
+            this.color = object.getColor();
+            this.geometry = PackedGeometry.fromROI(object.getROI());
+
+            if (object instanceof PathCellObject cell && cell.getNucleusROI() != null) {
+                this.type = CELL;
+                this.nucleusGeometry = PackedGeometry.fromROI(cell.getNucleusROI());
+            }
+            else {
+                this.type = object.isAnnotation() ? ANNOTATION : DETECTION;
+                this.nucleusGeometry = null;
+            }
+
+            MeasurementList measurements = object.getMeasurementList();
+            this.measurementNames = measurements.getMeasurementNames().toArray(new String[0]);
+            this.measurementValues = new double[measurementNames.length];
+            for (int i = 0; i < measurementNames.length; i++)
+                measurementValues[i] = measurements.get(measurementNames[i]);
+        }
+
+        PathObject toPathObject() {
+            PathObject object = switch (type) {
+                case CELL -> PathObjects.createCellObject(geometry.toROI(), nucleusGeometry.toROI(), pathClass, null);
+                case ANNOTATION -> PathObjects.createAnnotationObject(geometry.toROI(), pathClass);
+                default -> PathObjects.createDetectionObject(geometry.toROI(), pathClass);
+            };
+            object.setID(id);
+            if (name != null)
+                object.setName(name);
+            object.setColor(color);
+            if (measurementNames.length > 0) {
+                MeasurementList measurements = object.getMeasurementList();
+                for (int i = 0; i < measurementNames.length; i++)
+                    measurements.put(measurementNames[i], measurementValues[i]);
+                measurements.close();
+            }
+            return object;
+        }
+
+        long estimateBytes() {
+            long bytes = 64 + geometry.estimateBytes() + measurementValues.length * 8L + measurementNames.length * 8L;
+            if (nucleusGeometry != null)
+                bytes += nucleusGeometry.estimateBytes();
+            if (name != null)
+                bytes += name.length() * 2L;
+            return bytes;
+        }
+    }
+}
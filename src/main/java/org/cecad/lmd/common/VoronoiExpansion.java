@@ -0,0 +1,187 @@
+package org.cecad.lmd.common;
+
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.util.PolygonExtracter;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+import org.locationtech.jts.triangulate.VoronoiDiagramBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Expansion that can't create overlaps: each buffered object is clipped to the Voronoi cell of its centroid
+ * and kept clear of the neighbouring objects' outlines, so no object has to be merged or discarded afterwards.
+ * The diagram is built per tile (with enough margin for the cells to be exact within the expansion radius), tiles run in parallel.
+ */
+public class VoronoiExpansion {
+
+    private static final Logger logger = LoggerFactory.getLogger(VoronoiExpansion.class);
+    private static final int SEEDS_PER_TILE = 2000;
+    private static final double SITE_JITTER = 0.01; // pixels, far below anything visible but enough for distinct Voronoi sites
+
+    private record Seed(Coordinate centroid, Geometry geometry, int objectIndex) {}
+
+    /**
+     * @param objects objects to expand
+     * @param background objects that are not expanded but that the expanded objects must not grow into
+     * @return expanded geometries, in the order of objects
+     */
+    public static Geometry[] expand(List<PathObject> objects, Collection<PathObject> background, double radiusPixels, OperationMonitor monitor) {
+        GeometryFactory factory = GeometryTools.getDefaultFactory();
+        List<Seed> seeds = new ArrayList<>(objects.size() + background.size());
+        STRtree seedIndex = new STRtree();
+        double maxReach = 0;
+        Envelope bounds = new Envelope();
+
+        // Objects with the same centroid (duplicates, concentric shapes) would share one cell and grow into each other,
+        // each gets its own site instead
+        Set<Coordinate> usedSites = new HashSet<>();
+        int jittered = 0;
+        int i = 0;
+        for (PathObject object : objects) {
+            Seed seed = createSeed(object, i++, usedSites);
+            seeds.add(seed);
+            jittered += seed.centroid().equals2D(centroidOf(object)) ? 0 : 1;
+        }
+        for (PathObject object : background) {
+            Seed seed = createSeed(object, -1, usedSites);
+            seeds.add(seed);
+            jittered += seed.centroid().equals2D(centroidOf(object)) ? 0 : 1;
+        }
+        if (jittered > 0)
+            logger.info("{} objects share their centroid with another one, their Voronoi sites were moved by a fraction of a pixel", jittered);
+
+        for (Seed seed : seeds) {
+            seedIndex.insert(seed.geometry().getEnvelopeInternal(), seed);
+            for (Coordinate vertex : seed.geometry().getCoordinates())
+                maxReach = Math.max(maxReach, vertex.distance(seed.centroid()));
+            if (seed.objectIndex() >= 0)
+                bounds.expandToInclude(seed.centroid());
+        }
+        seedIndex.build(); // queried concurrently from here on
+
+        // A point of an expanded object lies within (radius + reach) of its site, reach being the farthest vertex from the site,
+        // so its nearest site lies within twice that
+        double margin = 2 * (radiusPixels + maxReach) + 1;
+
+        int tilesPerSide = Math.max(1, (int) Math.ceil(Math.sqrt(objects.size() / (double) SEEDS_PER_TILE)));
+        double tileWidth = Math.max(bounds.getWidth() / tilesPerSide, 1e-6);
+        double tileHeight = Math.max(bounds.getHeight() / tilesPerSide, 1e-6);
+        List<List<Seed>> tiles = new ArrayList<>(tilesPerSide * tilesPerSide);
+        for (int t = 0; t < tilesPerSide * tilesPerSide; t++)
+            tiles.add(new ArrayList<>());
+        for (Seed seed : seeds) {
+            if (seed.objectIndex() < 0)
+                continue;
+            int col = Math.min(tilesPerSide - 1, (int) ((seed.centroid().x - bounds.getMinX()) / tileWidth));
+            int row = Math.min(tilesPerSide - 1, (int) ((seed.centroid().y - bounds.getMinY()) / tileHeight));
+            tiles.get(row * tilesPerSide + col).add(seed);
+        }
+
+        Geometry[] results = new Geometry[objects.size()];
+        monitor.setTotal(objects.size());
+        IntStream.range(0, tiles.size()).parallel().forEach(t -> {
+            List<Seed> tileSeeds = tiles.get(t);
+            if (!tileSeeds.isEmpty())
+                expandTile(tileSeeds, seedIndex, margin, radiusPixels, factory, results, monitor);
+        });
+        return results;
+    }
+
+    private static Seed createSeed(PathObject object, int objectIndex, Set<Coordinate> usedSites) {
+        Coordinate site = centroidOf(object);
+        // Spiral out with the golden angle until the site is free, the offsets of successive duplicates never line up
+        for (int k = 1; !usedSites.add(site); k++) {
+            double angle = k * Math.PI * (3 - Math.sqrt(5));
+            double distance = SITE_JITTER * Math.sqrt(k);
+            Coordinate centroid = centroidOf(object);
+            site = new Coordinate(centroid.x + distance * Math.cos(angle), centroid.y + distance * Math.sin(angle));
+        }
+        return new Seed(site, object.getROI().getGeometry(), objectIndex);
+    }
+
+    private static Coordinate centroidOf(PathObject object) {
+        ROI roi = object.getROI();
+        return new Coordinate(roi.getCentroidX(), roi.getCentroidY());
+    }
+
+    private static void expandTile(List<Seed> tileSeeds, STRtree seedIndex, double margin, double radiusPixels,
+                                   GeometryFactory factory, Geometry[] results, OperationMonitor monitor) {
+        monitor.checkCancelled();
+        Envelope core = new Envelope();
+        for (Seed seed : tileSeeds)
+            core.expandToInclude(seed.centroid());
+        Envelope context = new Envelope(core);
+        context.expandBy(margin);
+
+        Set<Coordinate> sites = new HashSet<>();
+        for (Object candidate : seedIndex.query(context)) {
+            Seed seed = (Seed) candidate;
+            if (context.contains(seed.centroid()))
+                sites.add(seed.centroid());
+        }
+
+        if (sites.size() == 1) {
+            // Nothing else within reach, the object can grow freely
+            for (Seed seed : tileSeeds) {
+                results[seed.objectIndex()] = ObjectUtils.expandGeometry(seed.geometry(), radiusPixels);
+                monitor.worked(1);
+            }
+            return;
+        }
+
+        VoronoiDiagramBuilder builder = new VoronoiDiagramBuilder();
+        builder.setSites(sites);
+        Envelope clip = new Envelope(context);
+        clip.expandBy(margin);
+        builder.setClipEnvelope(clip);
+        Geometry diagram = builder.getDiagram(factory);
+
+        Map<Coordinate, Geometry> cellsBySite = new HashMap<>();
+        for (int c = 0; c < diagram.getNumGeometries(); c++) {
+            Geometry cell = diagram.getGeometryN(c);
+            cellsBySite.put((Coordinate) cell.getUserData(), cell);
+        }
+
+        for (Seed seed : tileSeeds) {
+            try {
+                results[seed.objectIndex()] = expandWithinCell(seed, cellsBySite.get(seed.centroid()), seedIndex, radiusPixels, factory);
+            } catch (RuntimeException e) {
+                logger.warn("Voronoi clipping failed for one object, keeping its original shape: {}", e.getMessage());
+                results[seed.objectIndex()] = seed.geometry();
+            }
+            monitor.worked(1);
+        }
+    }
+
+    private static Geometry expandWithinCell(Seed seed, Geometry cell, STRtree seedIndex, double radiusPixels, GeometryFactory factory) {
+        if (cell == null) // degenerate diagram, e.g. collinear sites - safer not to grow at all
+            return seed.geometry();
+        Geometry buffered = ObjectUtils.expandGeometry(seed.geometry(), radiusPixels);
+        Geometry growth = buffered.intersection(cell);
+
+        // Objects can reach beyond their own cell, the growth of the others must not cover them
+        List<Geometry> neighbours = new ArrayList<>();
+        for (Object candidate : seedIndex.query(buffered.getEnvelopeInternal())) {
+            Seed other = (Seed) candidate;
+            if (other != seed && other.geometry().intersects(growth))
+                neighbours.add(other.geometry());
+        }
+        if (!neighbours.isEmpty())
+            growth = growth.difference(UnaryUnionOp.union(neighbours));
+
+        return polygonal(growth.union(seed.geometry()), factory);
+    }
+
+    private static Geometry polygonal(Geometry geometry, GeometryFactory factory) {
+        if (geometry instanceof Polygonal)
+            return geometry;
+        return factory.buildGeometry(PolygonExtracter.getPolygons(geometry));
+    }
+}
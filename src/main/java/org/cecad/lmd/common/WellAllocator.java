@@ -0,0 +1,52 @@
+package org.cecad.lmd.common;
+
+import java.util.Random;
+
+/**
+ * Picks random, distinct wells of a plate. The free wells are kept packed in an array (a partial Fisher-Yates shuffle),
+ * so each pick costs the same however full the plate already is.
+ */
+public class WellAllocator {
+
+    private final WellPlateFormat format;
+    private final int[] freeWells;
+    private int freeCount;
+    private final Random random;
+
+    public WellAllocator(WellPlateFormat format) {
+        this(format, new Random());
+    }
+
+    public WellAllocator(WellPlateFormat format, Random random) {
+        this.format = format;
+        this.random = random;
+        freeCount = format.getWellCount();
+        freeWells = new int[freeCount];
+        for (int i = 0; i < freeCount; i++)
+            freeWells[i] = i;
+    }
+
+    public WellPlateFormat getFormat() {
+        return format;
+    }
+
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    /**
+     * @return indices of wellQty distinct wells not allocated before
+     * @throws IllegalArgumentException if there aren't enough free wells left
+     */
+    public int[] allocate(int wellQty) {
+        if (wellQty > freeCount)
+            throw new IllegalArgumentException("Only " + freeCount + " wells of the " + format.getCollectorName() + " are left, " + wellQty + " were requested");
+        int[] wells = new int[wellQty];
+        for (int i = 0; i < wellQty; i++) {
+            int picked = random.nextInt(freeCount);
+            wells[i] = freeWells[picked];
+            freeWells[picked] = freeWells[--freeCount];
+        }
+        return wells;
+    }
+}
@@ -0,0 +1,33 @@
+package org.cecad.lmd.common;
+
+/**
+ * Detections assigned to one well of a standard collector, or spread equally over a number of wells of a plate.
+ * This is also what the well data JSON holds, one object per assignment, e.g.
+ * {@code {"wellLabel": "B", "className": "Tumor", "objectQty": 40}} or
+ * {@code {"wellIndices": [17, 3], "className": "Stroma", "objectQty": 20}}.
+ *
+ * @param wellLabel label of the well, standard collectors only
+ * @param wellIndices wells of the plate (see {@link WellPlateFormat}), well plates only
+ * @param className class of the assigned detections, null if the detections aren't classified
+ * @param objectQty number of detections assigned
+ */
+public record WellAssignment(String wellLabel, int[] wellIndices, String className, int objectQty) {
+
+    public boolean isOnPlate() {
+        return wellIndices != null;
+    }
+
+    /**
+     * @return detections going into each well of a plate, what doesn't divide equally is left out
+     */
+    public int getObjectsPerWell() {
+        return wellIndices == null || wellIndices.length == 0 ? 0 : objectQty / wellIndices.length;
+    }
+
+    /**
+     * @return whether the detections are of a class, as opposed to unclassified or left unassigned
+     */
+    public boolean hasClass() {
+        return className != null && !className.equals(Constants.CapAssignments.NO_ASSIGNMENT);
+    }
+}
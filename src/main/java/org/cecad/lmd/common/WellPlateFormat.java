@@ -0,0 +1,70 @@
+package org.cecad.lmd.common;
+
+import static org.cecad.lmd.common.Constants.CollectorTypes.*;
+import static org.cecad.lmd.common.Constants.WellDataFileNames.*;
+
+/**
+ * The supported well plates. Wells are identified by a compact index (row-major, 0 = A1), the labels the LMD expects
+ * (A1 ... H12, ... AF48) are only made when they are written out.
+ */
+public enum WellPlateFormat {
+
+    PLATE_96(8, 12, _96_WELL_PLATE, _96_WELL_PLATE_DATA),
+    PLATE_384(16, 24, _384_WELL_PLATE, _384_WELL_PLATE_DATA),
+    PLATE_1536(32, 48, _1536_WELL_PLATE, _1536_WELL_PLATE_DATA);
+
+    private final int rows;
+    private final int columns;
+    private final String collectorName;
+    private final String dataFileName;
+
+    WellPlateFormat(int rows, int columns, String collectorName, String dataFileName) {
+        this.rows = rows;
+        this.columns = columns;
+        this.collectorName = collectorName;
+        this.dataFileName = dataFileName;
+    }
+
+    /**
+     * @return the format of the collector, or null if the collector isn't a well plate
+     */
+    public static WellPlateFormat fromCollectorName(String collectorName) {
+        for (WellPlateFormat format : values()) {
+            if (format.collectorName.equals(collectorName))
+                return format;
+        }
+        return null;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getWellCount() {
+        return rows * columns;
+    }
+
+    public String getCollectorName() {
+        return collectorName;
+    }
+
+    public String getDataFileName() {
+        return dataFileName;
+    }
+
+    public String getLabel(int wellIndex) {
+        if (wellIndex < 0 || wellIndex >= getWellCount())
+            throw new IllegalArgumentException("Well " + wellIndex + " is outside of the " + collectorName);
+        return getRowLabel(wellIndex / columns) + (wellIndex % columns + 1);
+    }
+
+    // A ... Z, then AA, AB, ... for the rows of the 1536-well plate
+    private static String getRowLabel(int row) {
+        char letter = (char) ('A' + row % 26);
+        return row < 26 ? String.valueOf(letter) : "A" + letter;
+    }
+}
@@ -1,5 +1,6 @@
 package org.cecad.lmd.ui;
 
+import org.cecad.lmd.common.ClassStatistics;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.classes.PathClass;
 
@@ -10,4 +11,5 @@ public interface ControlsInterface {
     void updateCollectorLabel(String collectorName);
     Set<PathClass> getAllClasses();
     Collection<PathObject> getDetectionsToExport();
+    ClassStatistics getClassStatistics();
 }
@@ -0,0 +1,277 @@
+package org.cecad.lmd.ui;
+
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.util.Duration;
+import org.cecad.lmd.common.ObjectUtils;
+import org.cecad.lmd.common.SpatialIndexService;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.gui.viewer.QuPathViewerListener;
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.*;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Temporary overlay showing what 'Expand' would produce for the selected detections in the visible part of the image.
+ * Nothing is written to the hierarchy; buffers are computed on a background thread and cached per object and radius.
+ * The preview follows the view, the selection and edits of the hierarchy (including undo).
+ * Conflicts are the pairs 'Expand' would have to merge or discard: overlapping, or closer than the minimum gap if one is kept.
+ * Clipping to Voronoi cells never leaves any, conflicts are then not looked for.
+ */
+public class ExpansionPreviewOverlay extends AbstractOverlay implements QuPathViewerListener, PathObjectHierarchyListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExpansionPreviewOverlay.class);
+    private static final int MAX_CACHED_BUFFERS = 50_000;
+    private static final Color OUTLINE_COLOR = new Color(0, 200, 255);
+    private static final Color CONFLICT_COLOR = new Color(255, 0, 0, 140);
+
+    private final QuPathViewer viewer;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "qucut-expansion-preview");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final PauseTransition debounce = new PauseTransition(Duration.millis(250));
+    private final AtomicLong generation = new AtomicLong();
+    private final IntegerProperty conflictCount = new SimpleIntegerProperty(0);
+    private final Map<BufferKey, Geometry> bufferCache = Collections.synchronizedMap(new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BufferKey, Geometry> eldest) {
+            return size() > MAX_CACHED_BUFFERS;
+        }
+    });
+    private double radiusMicrons;
+    private double minGapMicrons;
+    private boolean countConflicts;
+    private volatile PreviewResult result = null;
+    private volatile PathObjectHierarchy hierarchy;
+
+    private record BufferKey(PathObject object, ROI roi, double radiusPixels) {}
+    private record PreviewResult(List<Shape> outlines, List<Shape> conflicts) {}
+
+    /**
+     * @param minGapMicrons gap 'Expand' keeps between shapes, 0 if only overlaps count
+     * @param countConflicts false when the expansion can't create conflicts (Voronoi clipping)
+     */
+    public ExpansionPreviewOverlay(QuPathViewer viewer, double radiusMicrons, double minGapMicrons, boolean countConflicts) {
+        super(viewer.getOverlayOptions());
+        this.viewer = viewer;
+        this.radiusMicrons = radiusMicrons;
+        this.minGapMicrons = minGapMicrons;
+        this.countConflicts = countConflicts;
+        debounce.setOnFinished(event -> submitPreview());
+    }
+
+    public void attach() {
+        viewer.getCustomOverlayLayers().add(this);
+        viewer.addViewerListener(this);
+        setHierarchy(viewer.getImageData());
+        submitPreview();
+    }
+
+    public void detach() {
+        debounce.stop();
+        generation.incrementAndGet(); // invalidates any computation still running
+        setHierarchy(null);
+        viewer.removeViewerListener(this);
+        viewer.getCustomOverlayLayers().remove(this);
+        result = null;
+        bufferCache.clear();
+        conflictCount.set(0);
+        executor.shutdownNow();
+        viewer.repaint();
+    }
+
+    public void setRadiusMicrons(double radiusMicrons) {
+        this.radiusMicrons = radiusMicrons;
+        debounce.playFromStart();
+    }
+
+    public void setMinGapMicrons(double minGapMicrons) {
+        this.minGapMicrons = minGapMicrons;
+        debounce.playFromStart();
+    }
+
+    public void setCountConflicts(boolean countConflicts) {
+        this.countConflicts = countConflicts;
+        debounce.playFromStart();
+    }
+
+    public IntegerProperty conflictCountProperty() {
+        return conflictCount;
+    }
+
+    private void setHierarchy(ImageData<BufferedImage> imageData) {
+        if (hierarchy != null)
+            hierarchy.removeListener(this);
+        hierarchy = imageData == null ? null : imageData.getHierarchy();
+        if (hierarchy != null)
+            hierarchy.addListener(this);
+    }
+
+    // Collects the inputs on the FX thread, does the geometry work on the background thread
+    private void submitPreview() {
+        ImageData<BufferedImage> imageData = viewer.getImageData();
+        if (imageData == null)
+            return;
+        PathObjectHierarchy hierarchy = imageData.getHierarchy();
+        SpatialIndexService spatialIndex = SpatialIndexService.getInstance(imageData);
+        Set<PathObject> selected = new HashSet<>(hierarchy.getSelectionModel().getSelectedObjects());
+        Rectangle2D bounds = viewer.getDisplayedRegionShape().getBounds2D();
+        double radiusPixels = ObjectUtils.micronsToPixels(radiusMicrons, imageData.getServer().getPixelCalibration());
+        double gapPixels = countConflicts ? ObjectUtils.micronsToPixels(minGapMicrons, imageData.getServer().getPixelCalibration()) : -1;
+        // Objects just outside the view can still grow into it
+        int margin = (int) Math.ceil(radiusPixels * 2 + Math.max(0, gapPixels));
+        ImageRegion region = ImageRegion.createInstance(
+                (int) bounds.getMinX() - margin, (int) bounds.getMinY() - margin,
+                (int) Math.ceil(bounds.getWidth()) + 2 * margin, (int) Math.ceil(bounds.getHeight()) + 2 * margin,
+                viewer.getZPosition(), viewer.getTPosition());
+
+        long currentGeneration = generation.incrementAndGet();
+        executor.submit(() -> {
+            try {
+                PreviewResult preview = computePreview(currentGeneration, spatialIndex, selected, region, radiusPixels, gapPixels);
+                if (preview == null)
+                    return;
+                Platform.runLater(() -> {
+                    if (currentGeneration != generation.get())
+                        return;
+                    result = preview;
+                    conflictCount.set(preview.conflicts().size());
+                    viewer.repaint();
+                });
+            } catch (Exception e) {
+                logger.error("Error computing expansion preview: {}", e.getMessage());
+            }
+        });
+    }
+
+    private PreviewResult computePreview(long currentGeneration, SpatialIndexService spatialIndex, Set<PathObject> selected,
+                                         ImageRegion region, double radiusPixels, double gapPixels) {
+        Collection<PathObject> objectsInRegion = spatialIndex.getDetectionsInRegion(region);
+
+        List<Geometry> expanded = new ArrayList<>();
+        STRtree index = new STRtree();
+        for (PathObject object : objectsInRegion) {
+            if (currentGeneration != generation.get())
+                return null;
+            ROI roi = object.getROI();
+            Geometry geometry;
+            if (selected.contains(object)) {
+                geometry = bufferCache.computeIfAbsent(new BufferKey(object, roi, radiusPixels),
+                        key -> ObjectUtils.expandGeometry(roi.getGeometry(), radiusPixels));
+                expanded.add(geometry);
+            }
+            else
+                geometry = roi.getGeometry(); // background detections are not expanded
+            index.insert(geometry.getEnvelopeInternal(), geometry);
+        }
+
+        List<Shape> outlines = new ArrayList<>(expanded.size());
+        List<Shape> conflicts = new ArrayList<>();
+        Set<Geometry> done = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Geometry geometry : expanded) {
+            if (currentGeneration != generation.get())
+                return null;
+            outlines.add(GeometryTools.geometryToShape(geometry));
+            done.add(geometry);
+            if (gapPixels < 0)
+                continue; // no conflicts wanted
+            Envelope searchEnvelope = new Envelope(geometry.getEnvelopeInternal());
+            searchEnvelope.expandBy(gapPixels);
+            for (Object candidate : index.query(searchEnvelope)) {
+                Geometry other = (Geometry) candidate;
+                // Each pair of expanded objects is reported once
+                if (done.contains(other))
+                    continue;
+                if (geometry.intersects(other))
+                    conflicts.add(GeometryTools.geometryToShape(geometry.intersection(other)));
+                else if (gapPixels > 0 && geometry.isWithinDistance(other, gapPixels))
+                    // Too close for the laser, the part of the shape within the gap of the other one is shown
+                    conflicts.add(GeometryTools.geometryToShape(geometry.intersection(other.buffer(gapPixels))));
+            }
+        }
+        return new PreviewResult(outlines, conflicts);
+    }
+
+    @Override
+    public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor,
+                             ImageData<BufferedImage> imageData, boolean paintCompletely) {
+        PreviewResult current = result;
+        if (current == null)
+            return;
+        Graphics2D g = (Graphics2D) g2d.create();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setStroke(new BasicStroke((float) (1.5 * downsampleFactor)));
+        g.setColor(OUTLINE_COLOR);
+        for (Shape outline : current.outlines())
+            g.draw(outline);
+        g.setColor(CONFLICT_COLOR);
+        for (Shape conflict : current.conflicts())
+            g.fill(conflict);
+        g.dispose();
+    }
+
+    @Override
+    public void imageDataChanged(QuPathViewer viewer, ImageData<BufferedImage> imageDataOld, ImageData<BufferedImage> imageDataNew) {
+        bufferCache.clear();
+        result = null;
+        setHierarchy(imageDataNew);
+        debounce.playFromStart();
+    }
+
+    @Override
+    public void hierarchyChanged(PathObjectHierarchyEvent event) {
+        if (event.isChanging() || event.getHierarchy() != hierarchy)
+            return;
+        switch (event.getEventType()) {
+            // Shapes moved, appeared or went away, e.g. after an operation or its undo
+            case ADDED, REMOVED, CHANGE_OTHER, OTHER_STRUCTURE_CHANGE -> {
+                if (Platform.isFxApplicationThread())
+                    debounce.playFromStart();
+                else
+                    Platform.runLater(debounce::playFromStart);
+            }
+            default -> {
+                // classes and measurements don't change the preview
+            }
+        }
+    }
+
+    @Override
+    public void visibleRegionChanged(QuPathViewer viewer, Shape shape) {
+        debounce.playFromStart();
+    }
+
+    @Override
+    public void selectedObjectChanged(QuPathViewer viewer, PathObject pathObjectSelected) {
+        debounce.playFromStart();
+    }
+
+    @Override
+    public void viewerClosed(QuPathViewer viewer) {
+        detach();
+    }
+}
@@ -1,6 +1,9 @@
 package org.cecad.lmd.ui;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.cecad.lmd.common.WellAssignment;
+import org.cecad.lmd.common.WellPlateFormat;
 import org.slf4j.Logger;
 
 import java.io.File;
@@ -11,7 +14,6 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 
 import static org.cecad.lmd.common.Constants.WellDataFileNames.*;
@@ -37,11 +39,11 @@ public class IOUtils {
         return Paths.get(System.getProperty("user.dir"));
     }
 
-    public static void saveWellsToFile(Path dirPath, List<Map<String, Object>> wellDataList, String fileName, Logger logger) {
+    public static void saveWellsToFile(Path dirPath, List<WellAssignment> wellAssignments, String fileName, Logger logger) {
         String filePath = dirPath.resolve(fileName).toString();
         try (Writer writer = new FileWriter(filePath)) {
-            Gson gson = new Gson();  // Add Gson dependency
-            gson.toJson(wellDataList, writer);
+            Gson gson = new GsonBuilder().setPrettyPrinting().create(); // nulls are left out, a standard collector has no wellIndices
+            gson.toJson(wellAssignments, writer);
         } catch (IOException e) {
             logger.error("Error while saving wells assignment: {}", e.getMessage());
         }
@@ -98,8 +100,9 @@ public class IOUtils {
             return PCR_TUBES_DATA;
         else if (Objects.equals(collectorName, PETRI_DISHES))
             return PETRI_DISHES_DATA;
-        else if (Objects.equals(collectorName, _96_WELL_PLATE))
-            return _96_WELL_PLATE_DATA;
+        WellPlateFormat plateFormat = WellPlateFormat.fromCollectorName(collectorName);
+        if (plateFormat != null)
+            return plateFormat.getDataFileName();
         logger.warn("Provided collector doesn't much any of the available collectors!");
         return "";
     }
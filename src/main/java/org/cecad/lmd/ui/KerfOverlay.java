@@ -0,0 +1,268 @@
+package org.cecad.lmd.ui;
+
+import javafx.application.Platform;
+import org.cecad.lmd.common.SpatialIndexService;
+import org.locationtech.jts.geom.Envelope;
+import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.*;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Draws detections with the width of the laser's cut, in image pixels, at the viewer's current downsample.
+ * Either all detections or a chosen set of them (e.g. the selection) are drawn, the rest of the viewer is left untouched.
+ * Rendering is done per screen-sized tile and cached, so memory grows with the screen and not with the slide;
+ * a hierarchy change only invalidates the tiles under the objects it touched.
+ * Missing tiles are rendered in the background and drawn once ready, so panning over many detections never blocks the viewer;
+ * tiles started before the last change are thrown away.
+ * Objects too small to see at the current downsample are drawn as a dot instead of their full outline.
+ */
+public class KerfOverlay extends AbstractOverlay implements PathObjectHierarchyListener {
+
+    private static final int TILE_SIZE = 256; // in screen pixels
+    private static final int MAX_CACHED_TILES = 256; // 64 MB at most
+    private static final int ALPHA = 160;
+    private static final double MIN_OUTLINE_SCREEN_PIXELS = 4; // smaller objects are drawn as a dot
+    private static final ExecutorService RENDERER = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2), runnable -> {
+                Thread thread = new Thread(runnable, "qucut-kerf-overlay");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final QuPathViewer viewer;
+    private final ImageData<BufferedImage> imageData;
+    private final PathObjectHierarchy hierarchy;
+    private final SpatialIndexService spatialIndex;
+    private double kerfPixels;
+    private Set<PathObject> objectsToDraw = null; // null draws all detections
+    private final Map<PathObject, Envelope> drawnEnvelopes = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final AtomicLong generation = new AtomicLong(); // bumped by every change, older renders are discarded
+
+    private record TileKey(double downsample, int tileX, int tileY, int z, int t) {}
+
+    private final Map<TileKey, BufferedImage> tileCache = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TileKey, BufferedImage> eldest) {
+            return size() > MAX_CACHED_TILES;
+        }
+    });
+    private final Set<TileKey> pendingTiles = ConcurrentHashMap.newKeySet();
+
+    public KerfOverlay(QuPathViewer viewer, double kerfPixels) {
+        super(viewer.getOverlayOptions());
+        this.viewer = viewer;
+        this.imageData = viewer.getImageData();
+        this.hierarchy = imageData.getHierarchy();
+        this.spatialIndex = SpatialIndexService.getInstance(imageData);
+        this.kerfPixels = kerfPixels;
+    }
+
+    public void attach() {
+        hierarchy.addListener(this);
+        viewer.getCustomOverlayLayers().add(this);
+        viewer.repaint();
+    }
+
+    public void detach() {
+        hierarchy.removeListener(this);
+        viewer.getCustomOverlayLayers().remove(this);
+        clearCache();
+        viewer.repaint();
+    }
+
+    public void setKerfPixels(double kerfPixels) {
+        this.kerfPixels = kerfPixels;
+        clearCache();
+        viewer.repaint();
+    }
+
+    /**
+     * @param objects objects to draw, null to draw all detections
+     */
+    public void setObjectsToDraw(Collection<PathObject> objects) {
+        if (objects == null)
+            objectsToDraw = null;
+        else {
+            Set<PathObject> set = Collections.newSetFromMap(new IdentityHashMap<>());
+            set.addAll(objects);
+            objectsToDraw = set;
+        }
+        clearCache();
+        viewer.repaint();
+    }
+
+    private void clearCache() {
+        generation.incrementAndGet();
+        pendingTiles.clear();
+        tileCache.clear();
+        drawnEnvelopes.clear();
+    }
+
+    @Override
+    public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor,
+                             ImageData<BufferedImage> imageData, boolean paintCompletely) {
+        if (imageData != this.imageData)
+            return;
+        double tileSizeImage = TILE_SIZE * downsampleFactor;
+        int firstTileX = (int) Math.floor(imageRegion.getMinX() / tileSizeImage);
+        int firstTileY = (int) Math.floor(imageRegion.getMinY() / tileSizeImage);
+        int lastTileX = (int) Math.floor(imageRegion.getMaxX() / tileSizeImage);
+        int lastTileY = (int) Math.floor(imageRegion.getMaxY() / tileSizeImage);
+        for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+            for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+                TileKey key = new TileKey(downsampleFactor, tileX, tileY, imageRegion.getZ(), imageRegion.getT());
+                BufferedImage tile = tileCache.get(key);
+                if (tile == null) {
+                    requestTile(key, tileSizeImage);
+                    continue;
+                }
+                double x = tileX * tileSizeImage;
+                double y = tileY * tileSizeImage;
+                g2d.drawImage(tile, (int) Math.round(x), (int) Math.round(y),
+                        (int) Math.round(x + tileSizeImage) - (int) Math.round(x),
+                        (int) Math.round(y + tileSizeImage) - (int) Math.round(y), null);
+            }
+        }
+    }
+
+    private void requestTile(TileKey key, double tileSizeImage) {
+        if (!pendingTiles.add(key))
+            return;
+        long requestGeneration = generation.get();
+        RENDERER.execute(() -> {
+            try {
+                // The view or the objects may have changed while the tile was waiting
+                if (requestGeneration != generation.get())
+                    return;
+                BufferedImage tile = renderTile(key, tileSizeImage);
+                synchronized (tileCache) {
+                    if (requestGeneration != generation.get())
+                        return;
+                    tileCache.put(key, tile);
+                }
+                Platform.runLater(viewer::repaint);
+            } finally {
+                pendingTiles.remove(key);
+            }
+        });
+    }
+
+    private BufferedImage renderTile(TileKey key, double tileSizeImage) {
+        BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        double x = key.tileX() * tileSizeImage;
+        double y = key.tileY() * tileSizeImage;
+        Envelope envelope = new Envelope(x, x + tileSizeImage, y, y + tileSizeImage);
+        envelope.expandBy(Math.max(kerfPixels, key.downsample())); // outlines and dots of objects just outside reach into the tile
+        Set<PathObject> currentObjectsToDraw = objectsToDraw;
+        Collection<PathObject> objects = spatialIndex.getDetectionsInEnvelope(envelope, ImagePlane.getPlane(key.z(), key.t()));
+        if (currentObjectsToDraw != null)
+            objects.removeIf(object -> !currentObjectsToDraw.contains(object));
+        if (objects.isEmpty())
+            return tile;
+
+        Graphics2D g = tile.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.scale(1 / key.downsample(), 1 / key.downsample());
+        g.translate(-x, -y);
+        // Never thinner than a screen pixel, or the outlines disappear when zoomed out
+        g.setStroke(new BasicStroke((float) Math.max(kerfPixels, key.downsample()), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        double minOutlineSize = MIN_OUTLINE_SCREEN_PIXELS * key.downsample();
+        double dotSize = Math.max(kerfPixels, key.downsample());
+        for (PathObject object : objects) {
+            ROI roi = object.getROI();
+            drawnEnvelopes.put(object, new Envelope(roi.getBoundsX(), roi.getBoundsX() + roi.getBoundsWidth(),
+                    roi.getBoundsY(), roi.getBoundsY() + roi.getBoundsHeight()));
+            g.setColor(getColor(object));
+            if (Math.max(roi.getBoundsWidth(), roi.getBoundsHeight()) < minOutlineSize) {
+                // The outline wouldn't be readable anyway, skip building and stroking the shape
+                g.fill(new Rectangle2D.Double(roi.getCentroidX() - dotSize, roi.getCentroidY() - dotSize, dotSize * 2, dotSize * 2));
+            }
+            else
+                g.draw(roi.getShape());
+        }
+        g.dispose();
+        return tile;
+    }
+
+    private static Color getColor(PathObject object) {
+        Integer rgb = object.getColor();
+        if (rgb == null && object.getPathClass() != null)
+            rgb = object.getPathClass().getColor();
+        if (rgb == null)
+            rgb = PathPrefs.colorDetectionProperty().get();
+        return new Color((ALPHA << 24) | (rgb & 0xFFFFFF), true);
+    }
+
+    @Override
+    public void hierarchyChanged(PathObjectHierarchyEvent event) {
+        if (event.isChanging())
+            return;
+        switch (event.getEventType()) {
+            case ADDED, REMOVED, CHANGE_OTHER -> {
+                for (PathObject object : event.getChangedObjects())
+                    invalidate(object);
+            }
+            // Batch edits don't say which objects changed
+            case OTHER_STRUCTURE_CHANGE -> clearCache();
+            default -> {
+                return; // classes and measurements don't move outlines
+            }
+        }
+        if (Platform.isFxApplicationThread())
+            viewer.repaint();
+        else
+            Platform.runLater(viewer::repaint);
+    }
+
+    private void invalidate(PathObject object) {
+        if (object.hasChildObjects()) {
+            for (PathObject child : object.getChildObjects())
+                invalidate(child);
+        }
+        Set<PathObject> currentObjectsToDraw = objectsToDraw;
+        if (!object.isDetection() || (currentObjectsToDraw != null && !currentObjectsToDraw.contains(object)))
+            return;
+        // Both where the object was drawn and where it is now
+        invalidateTiles(drawnEnvelopes.remove(object));
+        ROI roi = object.getROI();
+        if (roi != null)
+            invalidateTiles(new Envelope(roi.getBoundsX(), roi.getBoundsX() + roi.getBoundsWidth(),
+                    roi.getBoundsY(), roi.getBoundsY() + roi.getBoundsHeight()));
+    }
+
+    private void invalidateTiles(Envelope objectEnvelope) {
+        if (objectEnvelope == null)
+            return;
+        Envelope envelope = new Envelope(objectEnvelope);
+        envelope.expandBy(Math.max(kerfPixels, 1));
+        synchronized (tileCache) {
+            generation.incrementAndGet();
+            pendingTiles.clear();
+            tileCache.keySet().removeIf(key -> {
+                double tileSizeImage = TILE_SIZE * key.downsample();
+                // Dots of small objects are at least a screen pixel wide
+                Envelope tileEnvelope = new Envelope(key.tileX() * tileSizeImage, (key.tileX() + 1) * tileSizeImage,
+                        key.tileY() * tileSizeImage, (key.tileY() + 1) * tileSizeImage);
+                tileEnvelope.expandBy(key.downsample());
+                return tileEnvelope.intersects(envelope);
+            });
+        }
+    }
+}
@@ -1,16 +1,22 @@
 package org.cecad.lmd.ui;
 
+import javafx.beans.binding.Bindings;
 import javafx.geometry.Insets;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.Tooltip;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import org.cecad.lmd.commands.MainCommand;
 import org.slf4j.LoggerFactory;
 import qupath.lib.images.ImageData;
+import org.cecad.lmd.common.ClassStatistics;
 import org.cecad.lmd.common.Constants;
+import org.cecad.lmd.common.Constants.ExportCoordinates;
+import org.cecad.lmd.common.Constants.ExportMirror;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
@@ -27,6 +33,8 @@ public class MainPane extends GridPane implements ControlsInterface {
     private final MainCommand command;
     private Label collectorChosenLabel;
     ComboBox<String> detectionsComboBox;
+    ComboBox<String> mirrorComboBox;
+    ComboBox<String> coordinatesComboBox;
     private final String SELECTED = Constants.Detections.SELECTED;
     private final String ALL = Constants.Detections.ALL;
 
@@ -61,6 +69,23 @@ public class MainPane extends GridPane implements ControlsInterface {
         collectorChosenLabel = new Label("None");
         collectorOptionLabel.setPrefWidth(144);
 
+        Label mirrorLabel = new Label("Mirror on export:");
+        mirrorLabel.setPrefWidth(144);
+        mirrorComboBox = new ComboBox<>();
+        mirrorComboBox.getItems().addAll(ExportMirror.NONE, ExportMirror.HORIZONTAL, ExportMirror.VERTICAL);
+        mirrorComboBox.setPrefWidth(144);
+        mirrorComboBox.getSelectionModel().select(ExportMirror.NONE);
+        mirrorComboBox.setTooltip(new Tooltip("Mirrors the exported coordinates (calibration points included) for a slide mounted mirrored, the image is not modified"));
+
+        Label coordinatesLabel = new Label("Export coordinates:");
+        coordinatesLabel.setPrefWidth(144);
+        coordinatesComboBox = new ComboBox<>();
+        coordinatesComboBox.getItems().addAll(ExportCoordinates.IMAGE, ExportCoordinates.STAGE);
+        coordinatesComboBox.setPrefWidth(144);
+        coordinatesComboBox.getSelectionModel().select(ExportCoordinates.IMAGE);
+        coordinatesComboBox.setTooltip(new Tooltip("Stage: coordinates are mapped to the stage positions of the calibration points before export, the LMD then has nothing left to transform"));
+        mirrorComboBox.disableProperty().bind(coordinatesComboBox.getSelectionModel().selectedItemProperty().isEqualTo(ExportCoordinates.STAGE));
+
         // Buttons
         Button setCollectorButton = new Button("Set Collector");
         setCollectorButton.setPrefWidth(290);
@@ -73,6 +98,17 @@ public class MainPane extends GridPane implements ControlsInterface {
         moreOptionsButton.setPrefWidth(290);
         moreOptionsButton.setOnAction(command.openMoreOptionsPane());
 
+        // Live overlap check
+        CheckBox overlapsCheckBox = new CheckBox("Highlight overlaps");
+        overlapsCheckBox.setPrefWidth(144);
+        overlapsCheckBox.setTooltip(new Tooltip("Show overlapping shapes in the viewer while editing, they can't be cut separately"));
+        // Bound both ways, closing the window turns the validation off and unticks the box
+        overlapsCheckBox.selectedProperty().bindBidirectional(command.overlapValidationProperty());
+        Label overlapsCountLabel = new Label();
+        overlapsCountLabel.textProperty().bind(Bindings.when(overlapsCheckBox.selectedProperty())
+                .then(Bindings.format("Overlaps: %d", command.overlapCountProperty()))
+                .otherwise(""));
+
         Button exportButton = new Button("Export");
         exportButton.setPrefWidth(130);
         exportButton.setOnAction(actionEvent -> {
@@ -104,23 +140,32 @@ public class MainPane extends GridPane implements ControlsInterface {
         GridPane.setConstraints(collectorOptionLabel, 0, 1);
         GridPane.setConstraints(collectorChosenLabel, 1, 1);
 
+        GridPane.setConstraints(mirrorLabel, 0, 2);
+        GridPane.setConstraints(mirrorComboBox, 1, 2);
+
+        GridPane.setConstraints(coordinatesLabel, 0, 3);
+        GridPane.setConstraints(coordinatesComboBox, 1, 3);
+
         // Buttons
         GridPane.setColumnSpan(setCollectorButton, 2);
-        GridPane.setConstraints(setCollectorButton, 0, 2);
+        GridPane.setConstraints(setCollectorButton, 0, 4);
 
         GridPane.setColumnSpan(moreOptionsButton, 2);
-        GridPane.setConstraints(moreOptionsButton, 0, 3);
+        GridPane.setConstraints(moreOptionsButton, 0, 5);
+
+        GridPane.setConstraints(overlapsCheckBox, 0, 6);
+        GridPane.setConstraints(overlapsCountLabel, 1, 6);
 
         GridPane.setColumnSpan(controlsButtonsBox, 2);
-        GridPane.setConstraints(controlsButtonsBox, 0, 5);
+        GridPane.setConstraints(controlsButtonsBox, 0, 7);
 
         // Make buttons grow horizontally
         GridPane.setHgrow(setCollectorButton, Priority.ALWAYS);
         GridPane.setHgrow(controlsButtonsBox, Priority.ALWAYS);
 
         // Add elements to the grid
-        getChildren().addAll(detectionsLabel, detectionsComboBox, collectorOptionLabel, collectorChosenLabel,
-                setCollectorButton, moreOptionsButton, controlsButtonsBox);
+        getChildren().addAll(detectionsLabel, detectionsComboBox, collectorOptionLabel, collectorChosenLabel, mirrorLabel, mirrorComboBox,
+                coordinatesLabel, coordinatesComboBox, setCollectorButton, moreOptionsButton, overlapsCheckBox, overlapsCountLabel, controlsButtonsBox);
     }
 
     @Override
@@ -138,10 +183,23 @@ public class MainPane extends GridPane implements ControlsInterface {
         return command.getDetectionsToExport();
     }
 
+    @Override
+    public ClassStatistics getClassStatistics() {
+        return command.getClassStatistics();
+    }
+
     public String getSelectedOrAll(){
         return detectionsComboBox.getSelectionModel().getSelectedItem();
     }
 
+    public String getExportMirror(){
+        return mirrorComboBox.getSelectionModel().getSelectedItem();
+    }
+
+    public String getExportCoordinates(){
+        return coordinatesComboBox.getSelectionModel().getSelectedItem();
+    }
+
     public String getCollector(){
         return collectorChosenLabel.getText();
     }
@@ -2,15 +2,17 @@ package org.cecad.lmd.ui;
 
 import javafx.collections.FXCollections;
 import javafx.geometry.Insets;
+import javafx.geometry.Pos;
 import javafx.scene.control.*;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import javafx.util.StringConverter;
 import org.cecad.lmd.commands.MoreOptionsCommand;
-import qupath.lib.gui.prefs.PathPrefs;
 
-import java.io.IOException;
+import java.util.List;
 
+import static org.cecad.lmd.common.Constants.Detections.ALL;
+import static org.cecad.lmd.common.Constants.Detections.SELECTED;
 import static org.cecad.lmd.common.Constants.EnlargeOptions.*;
 
 
@@ -36,9 +38,18 @@ public class MoreOptionsPane extends GridPane {
         Spinner<Integer> radiusSpinner = new Spinner<>(0, 100, 1);
         radiusSpinner.setPrefWidth(70);
 
+        CheckBox previewCheckBox = new CheckBox("Preview");
+        previewCheckBox.setTooltip(new Tooltip("Shows the expanded outlines (blue) and overlaps (red) in the visible region, nothing is changed until 'Expand' is pressed"));
+        previewCheckBox.selectedProperty().bindBidirectional(command.expansionPreviewProperty());
+        Label conflictsLabel = new Label();
+        conflictsLabel.textProperty().bind(command.previewConflictCountProperty().asString("Overlaps: %d"));
+        command.setPreviewRadius(radiusSpinner.getValue());
+        radiusSpinner.valueProperty().addListener((observable, oldValue, newValue) -> command.setPreviewRadius(newValue));
+
         HBox radiusBox = new HBox();
         radiusBox.setSpacing(10);
-        radiusBox.getChildren().addAll(radiusLabel, radiusSpinner);
+        radiusBox.setAlignment(Pos.CENTER_LEFT);
+        radiusBox.getChildren().addAll(radiusLabel, radiusSpinner, previewCheckBox, conflictsLabel);
 
         Label convertLabel = new Label("Convert selected objects:");
 
@@ -48,6 +59,18 @@ public class MoreOptionsPane extends GridPane {
         Button undoButton = new Button("Undo");
         undoButton.setPrefWidth(SMALL_BUTTON_WIDTH);
 
+        Button safeRadiusButton = new Button("Compute safe radius");
+        safeRadiusButton.setPrefWidth(SMALL_BUTTON_WIDTH);
+        safeRadiusButton.setTooltip(new Tooltip("Adds a measurement with the largest radius each selected detection can be expanded by without getting too close to its neighbours"));
+
+        Button adaptiveEnlargeButton = new Button("Adaptive expand");
+        adaptiveEnlargeButton.setPrefWidth(SMALL_BUTTON_WIDTH);
+        adaptiveEnlargeButton.setTooltip(new Tooltip("Expands each selected detection by the expansion radius or by its safe radius, whichever is smaller"));
+
+        HBox adaptiveButtonsBox = new HBox();
+        adaptiveButtonsBox.setSpacing(SPACING_BETWEEN_SMALL_BUTTONS);
+        adaptiveButtonsBox.getChildren().addAll(safeRadiusButton, adaptiveEnlargeButton);
+
         HBox enlargeButtonsBox = new HBox();
         enlargeButtonsBox.setSpacing(SPACING_BETWEEN_SMALL_BUTTONS);
         enlargeButtonsBox.getChildren().addAll(undoButton, enlargeButton);
@@ -67,15 +90,17 @@ public class MoreOptionsPane extends GridPane {
         sameClassComboBox.getSelectionModel().select(DISCARD_1);
         differentClassComboBox.getSelectionModel().select(SET_PRIORITY);
 
-        enlargeButton.setOnAction(actionEvent -> {
-            String sameClassChoice = sameClassComboBox.getSelectionModel().getSelectedItem();
-            String diffClassChoice = differentClassComboBox.getSelectionModel().getSelectedItem();
 
-            command.makeSelectedDetectionsBigger(radiusSpinner.getValue(), sameClassChoice, diffClassChoice);
-
-        });
+        undoButton.setOnAction(actionEvent -> command.undoLastOperation());
+        undoButton.setTooltip(new Tooltip("Reverts the last expand, convert, simplify or flip operation, can be repeated"));
 
-        undoButton.setOnAction(actionEvent -> command.undoEnlargement());
+        HBox undoLimitBox = new HBox();
+        Label undoLimitLabel = new Label("Undo history limit (MB):");
+        Spinner<Integer> undoLimitSpinner = new Spinner<>(16, 4096, MoreOptionsCommand.undoMemoryLimitMBProperty().get(), 16);
+        undoLimitSpinner.setPrefWidth(80);
+        undoLimitSpinner.valueProperty().addListener((observable, oldValue, newValue) -> MoreOptionsCommand.undoMemoryLimitMBProperty().set(newValue));
+        undoLimitBox.setSpacing(10);
+        undoLimitBox.getChildren().addAll(undoLimitLabel, undoLimitSpinner);
 
         detToAnnButton.setOnAction(actionEvent -> command.convertSelectedObjects(command.getQupath().getImageData().getHierarchy(),false));
         annToDetButton.setOnAction(actionEvent -> command.convertSelectedObjects(command.getQupath().getImageData().getHierarchy(),true));
@@ -91,84 +116,211 @@ public class MoreOptionsPane extends GridPane {
         altitudeBox.getChildren().addAll(altitudeLabel, altitudeSpinner);
         Label altitudeDescriptionLabel = new Label("Higher values result in simpler shapes");
 
+        CheckBox sharedBordersCheckBox = new CheckBox("Keep shared borders of touching shapes");
+        sharedBordersCheckBox.setTooltip(new Tooltip("Touching shapes are simplified together so their shared borders stay aligned.\n" +
+                "A shape that would overlap a neighbour more than before keeps its original outline."));
+
         Button simplifyButton = new Button("Simplify shapes");
-        simplifyButton.setOnAction(actionEvent -> command.simplifySelectedDetections(command.getQupath().getImageData().getHierarchy(), altitudeSpinner.getValue()));
+        simplifyButton.setOnAction(actionEvent -> command.simplifySelectedDetections(command.getQupath().getImageData().getHierarchy(),
+                altitudeSpinner.getValue(), sharedBordersCheckBox.isSelected()));
         simplifyButton.setPrefWidth(BIG_BUTTON_WIDTH);
 
-        Label detectionsBordersLabel = new Label("Visualize the laser (changes all detections border width):");
+        HBox maxPointsBox = new HBox();
+        Label maxPointsLabel = new Label("Max points per shape:");
+        Spinner<Integer> maxPointsSpinner = new Spinner<>(4, 10000, 200, 10);
+        maxPointsSpinner.setPrefWidth(80);
+        maxPointsSpinner.setEditable(true);
+        maxPointsBox.setSpacing(10);
+        maxPointsBox.getChildren().addAll(maxPointsLabel, maxPointsSpinner);
+
+        Button vertexBudgetButton = new Button("Simplify to max points");
+        vertexBudgetButton.setTooltip(new Tooltip("Each shape is simplified only as much as needed to get down to the max points, smaller shapes are left as they are"));
+        vertexBudgetButton.setOnAction(actionEvent -> command.simplifySelectedDetectionsToVertexBudget(command.getQupath().getImageData().getHierarchy(), maxPointsSpinner.getValue()));
+        vertexBudgetButton.setPrefWidth(BIG_BUTTON_WIDTH);
+
+        HBox resampleStepBox = new HBox();
+        Label resampleStepLabel = new Label("Vertex spacing (microns):");
+        Spinner<Double> resampleStepSpinner = new Spinner<>(0.1, 50.0, 1.0, 0.1);
+        resampleStepSpinner.setPrefWidth(70);
+        setDecimalFormattingForSpinner(resampleStepSpinner);
+        resampleStepBox.setSpacing(10);
+        resampleStepBox.getChildren().addAll(resampleStepLabel, resampleStepSpinner);
+
+        Button resampleButton = new Button("Resample contours");
+        resampleButton.setTooltip(new Tooltip("Redistributes the vertices of each shape evenly along its outline, so the laser cuts segments of equal length"));
+        resampleButton.setOnAction(actionEvent -> command.resampleSelectedDetections(command.getQupath().getImageData().getHierarchy(), resampleStepSpinner.getValue()));
+        resampleButton.setPrefWidth(BIG_BUTTON_WIDTH);
+
+        Label detectionsBordersLabel = new Label("Visualize the laser's cut width:");
 
         HBox laserApertureBox = new HBox();
         Label laserApertureLabel = new Label("Laser's aperture (microns):");
-        double defaultAperture = PathPrefs.detectionStrokeThicknessProperty().getValue();
+        double defaultAperture = MoreOptionsCommand.laserApertureMicronsProperty().get();
         Spinner<Double> laserApertureSpinner = new Spinner<>(1.0, 50.0, defaultAperture, 0.1);
+        laserApertureSpinner.valueProperty().addListener((observable, oldValue, newValue) -> MoreOptionsCommand.laserApertureMicronsProperty().set(newValue));
         laserApertureSpinner.setPrefWidth(70);
         setDecimalFormattingForSpinner(laserApertureSpinner);
         laserApertureBox.setSpacing(10);
         laserApertureBox.getChildren().addAll(laserApertureLabel, laserApertureSpinner);
 
-        Button repaintBordersButton = new Button("Visualize");
-        repaintBordersButton.setOnAction(actionEvent -> {
-            try {
-                command.repaintDetectionsBordersToMatchLaser(laserApertureSpinner.getValue());
-            } catch (IOException e) {
-                command.getLogger().error("Error while modifying shapes border width: {}", e.getMessage());
+        CheckBox keepGapCheckBox = new CheckBox("Keep laser's aperture as minimum gap between shapes");
+        keepGapCheckBox.setTooltip(new Tooltip("Shapes closer to each other than the laser's aperture are treated as intersecting"));
+
+        CheckBox voronoiCheckBox = new CheckBox(SPLIT_VORONOI);
+        voronoiCheckBox.setTooltip(new Tooltip("Expanded objects are clipped to the area closer to their own centre than to any other object, no objects are merged or discarded"));
+        sameClassComboBox.disableProperty().bind(voronoiCheckBox.selectedProperty());
+        differentClassComboBox.disableProperty().bind(voronoiCheckBox.selectedProperty());
+        keepGapCheckBox.disableProperty().bind(voronoiCheckBox.selectedProperty());
+
+        // The preview counts what 'Expand' would merge or discard with the current options
+        Runnable updatePreviewGap = () -> command.setPreviewMinGap(keepGapCheckBox.isSelected() ? laserApertureSpinner.getValue() : 0);
+        updatePreviewGap.run();
+        keepGapCheckBox.selectedProperty().addListener((observable, oldValue, newValue) -> updatePreviewGap.run());
+        laserApertureSpinner.valueProperty().addListener((observable, oldValue, newValue) -> updatePreviewGap.run());
+        command.setPreviewVoronoi(voronoiCheckBox.isSelected());
+        voronoiCheckBox.selectedProperty().addListener((observable, oldValue, newValue) -> command.setPreviewVoronoi(newValue));
+        conflictsLabel.visibleProperty().bind(previewCheckBox.selectedProperty().and(voronoiCheckBox.selectedProperty().not()));
+
+        enlargeButton.setOnAction(actionEvent -> {
+            if (voronoiCheckBox.isSelected()) {
+                command.expandSelectedDetectionsWithinVoronoi(radiusSpinner.getValue());
+                return;
             }
+            String sameClassChoice = sameClassComboBox.getSelectionModel().getSelectedItem();
+            String diffClassChoice = differentClassComboBox.getSelectionModel().getSelectedItem();
+            double minGap = keepGapCheckBox.isSelected() ? laserApertureSpinner.getValue() : 0;
+
+            command.makeSelectedDetectionsBigger(radiusSpinner.getValue(), sameClassChoice, diffClassChoice, minGap);
+
         });
-        repaintBordersButton.setPrefWidth(BIG_BUTTON_WIDTH);
+
+        safeRadiusButton.setOnAction(actionEvent -> command.computeSafeExpansionRadii(keepGapCheckBox.isSelected() ? laserApertureSpinner.getValue() : 0));
+        adaptiveEnlargeButton.setOnAction(actionEvent -> command.adaptiveExpandSelectedDetections(radiusSpinner.getValue(),
+                keepGapCheckBox.isSelected() ? laserApertureSpinner.getValue() : 0));
+
+        ComboBox<String> kerfObjectsComboBox = new ComboBox<>(FXCollections.observableArrayList(SELECTED, ALL));
+        kerfObjectsComboBox.getSelectionModel().select(ALL);
+        kerfObjectsComboBox.setPrefWidth(SMALL_BUTTON_WIDTH);
+        kerfObjectsComboBox.setTooltip(new Tooltip("Detections to draw with the laser's cut width, 'Selected' takes the selection at the time it is shown"));
+
+        ToggleButton repaintBordersButton = new ToggleButton("Visualize");
+        repaintBordersButton.setTooltip(new Tooltip("Draws the detections with the width of the laser's cut, press again to hide"));
+        Runnable showLaserKerf = () -> {
+            boolean selectedOnly = SELECTED.equals(kerfObjectsComboBox.getSelectionModel().getSelectedItem());
+            if (!command.showLaserKerf(laserApertureSpinner.getValue(), selectedOnly))
+                repaintBordersButton.setSelected(false);
+        };
+        repaintBordersButton.selectedProperty().addListener((observable, oldValue, newValue) -> {
+            if (newValue)
+                showLaserKerf.run();
+            else
+                command.hideLaserKerf();
+        });
+        laserApertureSpinner.valueProperty().addListener((observable, oldValue, newValue) -> {
+            if (repaintBordersButton.isSelected())
+                showLaserKerf.run();
+        });
+        kerfObjectsComboBox.getSelectionModel().selectedItemProperty().addListener((observable, oldValue, newValue) -> {
+            if (repaintBordersButton.isSelected())
+                showLaserKerf.run();
+        });
+        repaintBordersButton.setPrefWidth(SMALL_BUTTON_WIDTH);
+
+        HBox kerfButtonsBox = new HBox();
+        kerfButtonsBox.setSpacing(SPACING_BETWEEN_SMALL_BUTTONS);
+        kerfButtonsBox.getChildren().addAll(kerfObjectsComboBox, repaintBordersButton);
+
+        Label transferLabel = new Label("Copy selected detections to another image of the project:");
+        Button transferByCalibrationButton = new Button("Using calibration points");
+        transferByCalibrationButton.setPrefWidth(SMALL_BUTTON_WIDTH);
+        transferByCalibrationButton.setTooltip(new Tooltip("Fits the transform to the calibration points (3 or more) found in both images"));
+        transferByCalibrationButton.setOnAction(actionEvent -> command.transferSelectedDetections(true));
+        Button transferByAffineButton = new Button("Using affine transform");
+        transferByAffineButton.setPrefWidth(SMALL_BUTTON_WIDTH);
+        transferByAffineButton.setOnAction(actionEvent -> command.transferSelectedDetections(false));
+        HBox transferButtonsBox = new HBox();
+        transferButtonsBox.setSpacing(SPACING_BETWEEN_SMALL_BUTTONS);
+        transferButtonsBox.getChildren().addAll(transferByCalibrationButton, transferByAffineButton);
 
         Label flipLabel = new Label("Flip the image (creates a copy of the current image):");
         Button horizontalButton = new Button("Horizontal flip (left-right)");
         Button verticalButton = new Button("Vertical flip (top-bottom)");
         horizontalButton.setPrefWidth(BIG_BUTTON_WIDTH);
         verticalButton.setPrefWidth(BIG_BUTTON_WIDTH);
-        horizontalButton.setOnAction(actionEvent -> {
-            try {
-                command.flipImage(command.getQupath().getImageData(), true, false);
-            } catch (IOException e) {
-                command.getLogger().error("Horizontal flip failed: {}", e.getMessage());
-            }
-        });
-        verticalButton.setOnAction(actionEvent -> {
-            try {
-                command.flipImage(command.getQupath().getImageData(), false, true);
-            } catch (IOException e) {
-                command.getLogger().error("Vertical flip failed: {}", e.getMessage());
-            }
-        });
-
-        GridPane.setConstraints(enlargeSectionLabel, 0, 0);
-        GridPane.setConstraints(radiusBox, 0, 1);
-
-        GridPane.setConstraints(sameClassLabel, 0, 2);
-        GridPane.setConstraints(sameClassComboBox, 0, 3);
-
-        GridPane.setConstraints(differentClassLabel, 0, 4);
-        GridPane.setConstraints(differentClassComboBox, 0, 5);
-
-        GridPane.setConstraints(enlargeButtonsBox, 0, 6);
-
-        GridPane.setConstraints(detectionsBordersLabel, 0, 7);
-        GridPane.setConstraints(laserApertureBox, 0, 8);
-        GridPane.setConstraints(repaintBordersButton, 0, 9);
-
-        GridPane.setConstraints(convertLabel, 0, 10);
-        GridPane.setConstraints(detToAnnButton, 0, 11);
-        GridPane.setConstraints(annToDetButton, 0, 12);
-
-        GridPane.setConstraints(simplifyLabel, 0, 13);
-        GridPane.setConstraints(altitudeBox, 0, 14);
-        GridPane.setConstraints(altitudeDescriptionLabel, 0, 15);
-        GridPane.setConstraints(simplifyButton, 0, 16);
-
-        GridPane.setConstraints(flipLabel, 0, 17);
-        GridPane.setConstraints(horizontalButton, 0, 18);
-        GridPane.setConstraints(verticalButton, 0, 19);
-
-        getChildren().addAll(enlargeSectionLabel, radiusBox, sameClassLabel, sameClassComboBox, differentClassLabel, differentClassComboBox,
-                enlargeButtonsBox,
-                detectionsBordersLabel, laserApertureBox, repaintBordersButton,
+        horizontalButton.setOnAction(actionEvent -> command.flipImage(command.getQupath().getImageData(), true, false));
+        verticalButton.setOnAction(actionEvent -> command.flipImage(command.getQupath().getImageData(), false, true));
+
+        // Operations run in the background, one at a time, and can be cancelled from here
+        ProgressBar operationProgressBar = new ProgressBar();
+        operationProgressBar.setPrefWidth(BIG_BUTTON_WIDTH - SMALL_BUTTON_WIDTH / 2 - SPACING_BETWEEN_SMALL_BUTTONS);
+        operationProgressBar.progressProperty().bind(command.operationProgressProperty());
+        operationProgressBar.visibleProperty().bind(command.operationRunningProperty());
+        Button cancelButton = new Button("Cancel");
+        cancelButton.setPrefWidth(SMALL_BUTTON_WIDTH / 2);
+        cancelButton.disableProperty().bind(command.operationRunningProperty().not());
+        cancelButton.setOnAction(actionEvent -> command.cancelOperation());
+        HBox operationBox = new HBox();
+        operationBox.setSpacing(SPACING_BETWEEN_SMALL_BUTTONS);
+        operationBox.setAlignment(Pos.CENTER_LEFT);
+        operationBox.getChildren().addAll(operationProgressBar, cancelButton);
+        Label operationStatusLabel = new Label();
+        operationStatusLabel.textProperty().bind(command.operationStatusProperty());
+
+        for (ButtonBase button : List.of(enlargeButton, undoButton, safeRadiusButton, adaptiveEnlargeButton, detToAnnButton, annToDetButton,
+                simplifyButton, vertexBudgetButton, resampleButton, transferByCalibrationButton, transferByAffineButton,
+                horizontalButton, verticalButton))
+            button.disableProperty().bind(command.operationRunningProperty());
+
+        GridPane.setConstraints(operationBox, 0, 0);
+        GridPane.setConstraints(operationStatusLabel, 0, 1);
+
+        GridPane.setConstraints(enlargeSectionLabel, 0, 2);
+        GridPane.setConstraints(radiusBox, 0, 3);
+
+        GridPane.setConstraints(sameClassLabel, 0, 4);
+        GridPane.setConstraints(sameClassComboBox, 0, 5);
+
+        GridPane.setConstraints(differentClassLabel, 0, 6);
+        GridPane.setConstraints(differentClassComboBox, 0, 7);
+
+        GridPane.setConstraints(voronoiCheckBox, 0, 8);
+        GridPane.setConstraints(keepGapCheckBox, 0, 9);
+        GridPane.setConstraints(enlargeButtonsBox, 0, 10);
+        GridPane.setConstraints(adaptiveButtonsBox, 0, 11);
+        GridPane.setConstraints(undoLimitBox, 0, 12);
+
+        GridPane.setConstraints(detectionsBordersLabel, 0, 13);
+        GridPane.setConstraints(laserApertureBox, 0, 14);
+        GridPane.setConstraints(kerfButtonsBox, 0, 15);
+
+        GridPane.setConstraints(convertLabel, 0, 16);
+        GridPane.setConstraints(detToAnnButton, 0, 17);
+        GridPane.setConstraints(annToDetButton, 0, 18);
+
+        GridPane.setConstraints(simplifyLabel, 0, 19);
+        GridPane.setConstraints(altitudeBox, 0, 20);
+        GridPane.setConstraints(altitudeDescriptionLabel, 0, 21);
+        GridPane.setConstraints(sharedBordersCheckBox, 0, 22);
+        GridPane.setConstraints(simplifyButton, 0, 23);
+        GridPane.setConstraints(maxPointsBox, 0, 24);
+        GridPane.setConstraints(vertexBudgetButton, 0, 25);
+        GridPane.setConstraints(resampleStepBox, 0, 26);
+        GridPane.setConstraints(resampleButton, 0, 27);
+
+        GridPane.setConstraints(transferLabel, 0, 28);
+        GridPane.setConstraints(transferButtonsBox, 0, 29);
+
+        GridPane.setConstraints(flipLabel, 0, 30);
+        GridPane.setConstraints(horizontalButton, 0, 31);
+        GridPane.setConstraints(verticalButton, 0, 32);
+
+        getChildren().addAll(operationBox, operationStatusLabel,
+                enlargeSectionLabel, radiusBox, sameClassLabel, sameClassComboBox, differentClassLabel, differentClassComboBox,
+                voronoiCheckBox, keepGapCheckBox, enlargeButtonsBox, adaptiveButtonsBox, undoLimitBox,
+                detectionsBordersLabel, laserApertureBox, kerfButtonsBox,
                 convertLabel, detToAnnButton, annToDetButton,
-                simplifyLabel, altitudeBox, altitudeDescriptionLabel, simplifyButton,
+                simplifyLabel, altitudeBox, altitudeDescriptionLabel, sharedBordersCheckBox, simplifyButton, maxPointsBox, vertexBudgetButton, resampleStepBox, resampleButton,
+                transferLabel, transferButtonsBox,
                 flipLabel, horizontalButton, verticalButton);
 
     }
@@ -0,0 +1,275 @@
+package org.cecad.lmd.ui;
+
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.util.Duration;
+import org.cecad.lmd.common.SpatialIndexService;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.gui.viewer.QuPathViewerListener;
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Live check for overlapping detections while shapes are being edited.
+ * Only the objects touched by a hierarchy change are tested, against their neighbours from the image's spatial index;
+ * conflicts found earlier are kept until one of their two objects changes again.
+ */
+public class OverlapValidationOverlay extends AbstractOverlay implements PathObjectHierarchyListener, QuPathViewerListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(OverlapValidationOverlay.class);
+    private static final Color CONFLICT_COLOR = new Color(255, 0, 0, 140);
+
+    private final QuPathViewer viewer;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "qucut-overlap-validation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final PauseTransition debounce = new PauseTransition(Duration.millis(300));
+    private final IntegerProperty conflictCount = new SimpleIntegerProperty(0);
+
+    // Filled by hierarchy events, drained by the validation thread
+    private final Set<PathObject> pendingObjects = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final AtomicBoolean pendingResync = new AtomicBoolean(false);
+
+    // Only touched on the validation thread
+    private final Map<PathObject, ROI> checkedROIs = new IdentityHashMap<>();
+    private final Map<PathObject, Map<PathObject, Shape>> conflictsByObject = new IdentityHashMap<>();
+
+    private volatile PathObjectHierarchy hierarchy;
+    private SpatialIndexService spatialIndex;
+    private volatile List<Shape> conflictShapes = List.of();
+
+    public OverlapValidationOverlay(QuPathViewer viewer) {
+        super(viewer.getOverlayOptions());
+        this.viewer = viewer;
+        debounce.setOnFinished(event -> submitValidation());
+    }
+
+    public void attach() {
+        viewer.getCustomOverlayLayers().add(this);
+        viewer.addViewerListener(this);
+        setImageData(viewer.getImageData());
+    }
+
+    public void detach() {
+        debounce.stop();
+        setImageData(null);
+        viewer.removeViewerListener(this);
+        viewer.getCustomOverlayLayers().remove(this);
+        executor.shutdownNow();
+        viewer.repaint();
+    }
+
+    public IntegerProperty conflictCountProperty() {
+        return conflictCount;
+    }
+
+    private void setImageData(ImageData<BufferedImage> imageData) {
+        if (hierarchy != null)
+            hierarchy.removeListener(this);
+        hierarchy = imageData == null ? null : imageData.getHierarchy();
+        spatialIndex = imageData == null ? null : SpatialIndexService.getInstance(imageData);
+        synchronized (pendingObjects) {
+            pendingObjects.clear();
+        }
+        conflictShapes = List.of();
+        conflictCount.set(0);
+        if (hierarchy == null)
+            return;
+        hierarchy.addListener(this);
+
+        executor.submit(() -> {
+            checkedROIs.clear();
+            conflictsByObject.clear();
+        });
+        // Everything is checked once, later on only what changes
+        pendingResync.set(true);
+        submitValidation();
+    }
+
+    @Override
+    public void hierarchyChanged(PathObjectHierarchyEvent event) {
+        if (event.isChanging() || event.getHierarchy() != hierarchy)
+            return;
+        switch (event.getEventType()) {
+            case ADDED, REMOVED, CHANGE_OTHER -> {
+                synchronized (pendingObjects) {
+                    for (PathObject object : event.getChangedObjects())
+                        collectDetections(object, pendingObjects);
+                }
+            }
+            // Batch edits don't say which objects changed, only compare ROIs (no geometry work) to find them
+            case OTHER_STRUCTURE_CHANGE -> pendingResync.set(true);
+            default -> {
+                return; // classes and measurements don't move shapes
+            }
+        }
+        if (Platform.isFxApplicationThread())
+            debounce.playFromStart();
+        else
+            Platform.runLater(debounce::playFromStart);
+    }
+
+    private static void collectDetections(PathObject object, Set<PathObject> detections) {
+        if (object.isDetection())
+            detections.add(object);
+        if (object.hasChildObjects()) {
+            for (PathObject child : object.getChildObjects())
+                collectDetections(child, detections);
+        }
+    }
+
+    private void submitValidation() {
+        PathObjectHierarchy currentHierarchy = hierarchy;
+        SpatialIndexService currentSpatialIndex = spatialIndex;
+        if (currentHierarchy == null)
+            return;
+        executor.submit(() -> {
+            try {
+                validate(currentHierarchy, currentSpatialIndex);
+            } catch (Exception e) {
+                logger.error("Error validating overlaps: {}", e.getMessage());
+            }
+        });
+    }
+
+    private void validate(PathObjectHierarchy currentHierarchy, SpatialIndexService currentSpatialIndex) {
+        if (currentHierarchy != hierarchy)
+            return;
+        Set<PathObject> changedObjects = Collections.newSetFromMap(new IdentityHashMap<>());
+        synchronized (pendingObjects) {
+            changedObjects.addAll(pendingObjects);
+            pendingObjects.clear();
+        }
+        if (pendingResync.getAndSet(false)) {
+            Set<PathObject> currentDetections = Collections.newSetFromMap(new IdentityHashMap<>());
+            currentDetections.addAll(currentHierarchy.getDetectionObjects());
+            for (PathObject object : currentDetections) {
+                if (checkedROIs.get(object) != object.getROI())
+                    changedObjects.add(object);
+            }
+            for (PathObject object : checkedROIs.keySet()) {
+                if (!currentDetections.contains(object))
+                    changedObjects.add(object);
+            }
+        }
+        if (changedObjects.isEmpty())
+            return;
+
+        for (PathObject object : changedObjects) {
+            removeConflicts(object);
+            checkedROIs.remove(object);
+        }
+        for (PathObject object : changedObjects) {
+            ROI roi = object.getROI();
+            if (roi == null || object.getParent() == null || !object.isDetection())
+                continue; // removed from the hierarchy
+            checkedROIs.put(object, roi);
+            checkObject(object, roi, currentSpatialIndex);
+        }
+        publishConflicts();
+    }
+
+    private void checkObject(PathObject object, ROI roi, SpatialIndexService currentSpatialIndex) {
+        Geometry geometry = roi.getGeometry();
+        Envelope envelope = geometry.getEnvelopeInternal();
+        for (PathObject other : currentSpatialIndex.getDetectionsInEnvelope(envelope, ImagePlane.getPlane(roi))) {
+            if (other == object)
+                continue;
+            Geometry otherGeometry = other.getROI().getGeometry();
+            if (geometry.intersects(otherGeometry)) {
+                Shape shape = GeometryTools.geometryToShape(geometry.intersection(otherGeometry));
+                conflictsByObject.computeIfAbsent(object, o -> new IdentityHashMap<>()).put(other, shape);
+                conflictsByObject.computeIfAbsent(other, o -> new IdentityHashMap<>()).put(object, shape);
+            }
+        }
+    }
+
+    private void removeConflicts(PathObject object) {
+        Map<PathObject, Shape> conflicts = conflictsByObject.remove(object);
+        if (conflicts == null)
+            return;
+        for (PathObject other : conflicts.keySet()) {
+            Map<PathObject, Shape> otherConflicts = conflictsByObject.get(other);
+            if (otherConflicts != null) {
+                otherConflicts.remove(object);
+                if (otherConflicts.isEmpty())
+                    conflictsByObject.remove(other);
+            }
+        }
+    }
+
+    private void publishConflicts() {
+        // Each pair is stored from both sides, the same Shape instance is listed once
+        Set<Shape> shapes = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Map<PathObject, Shape> conflicts : conflictsByObject.values())
+            shapes.addAll(conflicts.values());
+        List<Shape> snapshot = List.copyOf(shapes);
+        Platform.runLater(() -> {
+            conflictShapes = snapshot;
+            conflictCount.set(snapshot.size());
+            viewer.repaint();
+        });
+    }
+
+    @Override
+    public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor,
+                             ImageData<BufferedImage> imageData, boolean paintCompletely) {
+        List<Shape> current = conflictShapes;
+        if (current.isEmpty())
+            return;
+        Graphics2D g = (Graphics2D) g2d.create();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        // Shapes which only touch have an empty intersection area, the stroke keeps them visible
+        g.setStroke(new BasicStroke((float) (2 * downsampleFactor)));
+        g.setColor(CONFLICT_COLOR);
+        for (Shape conflict : current) {
+            g.fill(conflict);
+            g.draw(conflict);
+        }
+        g.dispose();
+    }
+
+    @Override
+    public void imageDataChanged(QuPathViewer viewer, ImageData<BufferedImage> imageDataOld, ImageData<BufferedImage> imageDataNew) {
+        setImageData(imageDataNew);
+    }
+
+    @Override
+    public void visibleRegionChanged(QuPathViewer viewer, Shape shape) {
+        // conflicts are kept for the whole image, nothing to recompute
+    }
+
+    @Override
+    public void selectedObjectChanged(QuPathViewer viewer, PathObject pathObjectSelected) {
+        // selection doesn't change shapes
+    }
+
+    @Override
+    public void viewerClosed(QuPathViewer viewer) {
+        detach();
+    }
+}
@@ -5,6 +5,7 @@ import javafx.scene.control.Button;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Priority;
 import org.cecad.lmd.commands.SetCollectorCommand;
+import org.cecad.lmd.common.WellPlateFormat;
 
 public class SetCollectorPane extends GridPane {
 
@@ -49,7 +50,21 @@ public class SetCollectorPane extends GridPane {
         Button _96WellPlateButton = new Button("96-Well Plate");
         _96WellPlateButton.setPrefWidth(200);
         _96WellPlateButton.setOnAction(event -> {
-            command.openWellPlatePane();
+            command.openWellPlatePane(WellPlateFormat.PLATE_96);
+            command.closeStage();
+        });
+
+        Button _384WellPlateButton = new Button("384-Well Plate");
+        _384WellPlateButton.setPrefWidth(200);
+        _384WellPlateButton.setOnAction(event -> {
+            command.openWellPlatePane(WellPlateFormat.PLATE_384);
+            command.closeStage();
+        });
+
+        Button _1536WellPlateButton = new Button("1536-Well Plate");
+        _1536WellPlateButton.setPrefWidth(200);
+        _1536WellPlateButton.setOnAction(event -> {
+            command.openWellPlatePane(WellPlateFormat.PLATE_1536);
             command.closeStage();
         });
 
@@ -66,13 +81,15 @@ public class SetCollectorPane extends GridPane {
         GridPane.setConstraints(_12FoldStripButton, 0, 2);
         GridPane.setConstraints(petriDishesButton, 0, 3);
         GridPane.setConstraints(_96WellPlateButton, 0, 4);
-        GridPane.setConstraints(NoneButton, 0, 5);
+        GridPane.setConstraints(_384WellPlateButton, 0, 5);
+        GridPane.setConstraints(_1536WellPlateButton, 0, 6);
+        GridPane.setConstraints(NoneButton, 0, 7);
 
         GridPane.setHgrow(pcrTubesButton, Priority.ALWAYS);
         GridPane.setHgrow(_8FoldStripButton, Priority.ALWAYS);
 
         getChildren().addAll(pcrTubesButton, _8FoldStripButton, _12FoldStripButton,
-                petriDishesButton, _96WellPlateButton, NoneButton);
+                petriDishesButton, _96WellPlateButton, _384WellPlateButton, _1536WellPlateButton, NoneButton);
     }
 
 
@@ -0,0 +1,73 @@
+package org.cecad.lmd.ui;
+
+import javafx.beans.property.*;
+
+/**
+ * One row of the {@link WellAssignmentTable}: a well (standard collectors) or a number of wells (well plates),
+ * the class of the detections assigned to it, if the detections are classified, and how many of them.
+ * The problem with the row, if any, is kept up to date by the table.
+ */
+public class WellAssignmentRow {
+
+    private final String wellLabel; // null for well plates, their wells are picked at random when saving
+    private final IntegerProperty wellCount = new SimpleIntegerProperty(0); // only used for well plates, set by the user like the old spinners
+    private final StringProperty className = new SimpleStringProperty();
+    private final IntegerProperty objectQty = new SimpleIntegerProperty(0);
+    private final ReadOnlyStringWrapper problem = new ReadOnlyStringWrapper("");
+
+    public WellAssignmentRow(String wellLabel) {
+        this.wellLabel = wellLabel;
+    }
+
+    public String getWellLabel() {
+        return wellLabel;
+    }
+
+    public int getWellCount() {
+        return wellCount.get();
+    }
+
+    public void setWellCount(int wellCount) {
+        this.wellCount.set(wellCount);
+    }
+
+    public IntegerProperty wellCountProperty() {
+        return wellCount;
+    }
+
+    public String getClassName() {
+        return className.get();
+    }
+
+    public void setClassName(String className) {
+        this.className.set(className);
+    }
+
+    public StringProperty classNameProperty() {
+        return className;
+    }
+
+    public int getObjectQty() {
+        return objectQty.get();
+    }
+
+    public void setObjectQty(int objectQty) {
+        this.objectQty.set(objectQty);
+    }
+
+    public IntegerProperty objectQtyProperty() {
+        return objectQty;
+    }
+
+    public String getProblem() {
+        return problem.get();
+    }
+
+    void setProblem(String problem) {
+        this.problem.set(problem);
+    }
+
+    public ReadOnlyStringProperty problemProperty() {
+        return problem.getReadOnlyProperty();
+    }
+}
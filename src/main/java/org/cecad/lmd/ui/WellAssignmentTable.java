@@ -0,0 +1,351 @@
+package org.cecad.lmd.ui;
+
+import javafx.beans.binding.Bindings;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.Tooltip;
+import javafx.scene.control.cell.ComboBoxTableCell;
+import javafx.scene.control.cell.TextFieldTableCell;
+import javafx.util.Duration;
+import javafx.util.StringConverter;
+import qupath.fx.dialogs.Dialogs;
+
+import java.util.*;
+import java.util.function.IntConsumer;
+
+import static org.cecad.lmd.common.Constants.CapAssignments.NO_ASSIGNMENT;
+
+/**
+ * Editor of the assignments of detections to wells. The table only creates cells for the visible rows, so it stays light
+ * with hundreds of wells or classes. Editing a row only revalidates that row and the totals of the classes it touched;
+ * the totals by class are kept as running sums instead of being summed over all rows again.
+ */
+public class WellAssignmentTable extends TableView<WellAssignmentRow> {
+
+    private record Contribution(String className, int objectQty, int wellCount, boolean hasProblem) {}
+
+    private final boolean isWellPlate;
+    private final int maxWells; // of the plate, unused for standard collectors
+    private final boolean isClassification;
+    private Map<String, Integer> availableCounts;
+    private int availableTotal;
+
+    private final Map<WellAssignmentRow, Contribution> contributions = new IdentityHashMap<>();
+    private final Map<String, Integer> assignedByClass = new HashMap<>();
+    private final Map<String, Integer> rowsByClass = new HashMap<>();
+    private final Set<String> mismatchedClasses = new TreeSet<>();
+    private int assignedTotal = 0;
+    private int assignedWells = 0;
+    private int problemRows = 0;
+    private final ReadOnlyStringWrapper summary = new ReadOnlyStringWrapper("");
+
+    /**
+     * @param maxWells number of wells of the plate; wells are then given as a count per row, 0 for standard collectors with a well per row
+     * @param classNames classes to choose from, empty if the detections aren't classified
+     */
+    public WellAssignmentTable(int maxWells, List<String> classNames, Map<String, Integer> availableCounts, int availableTotal) {
+        this.isWellPlate = maxWells > 0;
+        this.maxWells = maxWells;
+        this.isClassification = !classNames.isEmpty();
+        this.availableCounts = new HashMap<>(availableCounts);
+        this.availableTotal = availableTotal;
+
+        setEditable(true);
+        setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+
+        if (isWellPlate) {
+            TableColumn<WellAssignmentRow, Integer> wellsColumn = createIntegerColumn("Wells",
+                    "The number of wells the detections will be equally distributed to, the labels will be generated at random");
+            wellsColumn.setCellValueFactory(data -> data.getValue().wellCountProperty().asObject());
+            wellsColumn.setOnEditCommit(event -> commitInteger(event.getNewValue(), event.getRowValue()::setWellCount));
+            getColumns().add(wellsColumn);
+        }
+        else {
+            TableColumn<WellAssignmentRow, String> wellColumn = new TableColumn<>("Well");
+            setTooltip(wellColumn, "Label of each well available in the chosen collector");
+            wellColumn.setCellValueFactory(data -> new ReadOnlyStringWrapper(data.getValue().getWellLabel()));
+            wellColumn.setEditable(false);
+            wellColumn.setSortable(false);
+            getColumns().add(wellColumn);
+        }
+
+        if (isClassification) {
+            ObservableList<String> classChoices = FXCollections.observableArrayList(classNames);
+            classChoices.add(NO_ASSIGNMENT);
+            TableColumn<WellAssignmentRow, String> classColumn = new TableColumn<>("Objects (class)");
+            setTooltip(classColumn, "Classes of detections to export");
+            classColumn.setCellValueFactory(data -> data.getValue().classNameProperty());
+            classColumn.setCellFactory(ComboBoxTableCell.forTableColumn(classChoices));
+            classColumn.setSortable(false);
+            getColumns().add(classColumn);
+        }
+
+        TableColumn<WellAssignmentRow, Integer> countColumn = createIntegerColumn("Objects (count)",
+                isWellPlate ? "Amount of detection objects to assign to the specified number of wells in each batch"
+                        : "Amount of detection objects to assign to the well");
+        countColumn.setCellValueFactory(data -> data.getValue().objectQtyProperty().asObject());
+        countColumn.setOnEditCommit(event -> commitInteger(event.getNewValue(), event.getRowValue()::setObjectQty));
+        getColumns().add(countColumn);
+
+        TableColumn<WellAssignmentRow, String> availableColumn = new TableColumn<>("Available");
+        availableColumn.setCellValueFactory(data -> Bindings.createStringBinding(
+                () -> "/ " + getAvailable(data.getValue().getClassName()), data.getValue().classNameProperty()));
+        availableColumn.setEditable(false);
+        availableColumn.setSortable(false);
+        getColumns().add(availableColumn);
+
+        TableColumn<WellAssignmentRow, String> problemColumn = new TableColumn<>("Problem");
+        problemColumn.setCellValueFactory(data -> data.getValue().problemProperty());
+        problemColumn.setEditable(false);
+        problemColumn.setSortable(false);
+        problemColumn.setStyle("-fx-text-fill: red;");
+        getColumns().add(problemColumn);
+
+        getItems().addListener((ListChangeListener<WellAssignmentRow>) change -> {
+            while (change.next()) {
+                for (WellAssignmentRow row : change.getRemoved())
+                    unregister(row);
+                for (WellAssignmentRow row : change.getAddedSubList())
+                    register(row);
+            }
+            updateSummary();
+        });
+    }
+
+    private static TableColumn<WellAssignmentRow, Integer> createIntegerColumn(String title, String tooltip) {
+        TableColumn<WellAssignmentRow, Integer> column = new TableColumn<>(title);
+        setTooltip(column, tooltip);
+        column.setCellFactory(TextFieldTableCell.forTableColumn(new StringConverter<>() {
+            @Override
+            public String toString(Integer value) {
+                return value == null ? "" : value.toString();
+            }
+
+            @Override
+            public Integer fromString(String string) {
+                try {
+                    return Integer.parseInt(string.trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }));
+        column.setSortable(false);
+        return column;
+    }
+
+    private static void setTooltip(TableColumn<WellAssignmentRow, ?> column, String text) {
+        Tooltip tooltip = new Tooltip(text);
+        tooltip.setShowDuration(new Duration(30000));
+        Label header = new Label(column.getText());
+        header.setTooltip(tooltip);
+        column.setGraphic(header);
+        column.setText("");
+    }
+
+    private void commitInteger(Integer value, IntConsumer setter) {
+        if (value == null || value < 0) {
+            Dialogs.showWarningNotification("Invalid Data", "Please enter a whole number, 0 or larger.");
+            refresh(); // shows the old value again
+            return;
+        }
+        setter.accept(value);
+    }
+
+    public WellAssignmentRow addRow(String wellLabel) {
+        WellAssignmentRow row = new WellAssignmentRow(wellLabel);
+        getItems().add(row);
+        return row;
+    }
+
+    private void register(WellAssignmentRow row) {
+        row.classNameProperty().addListener((observable, oldValue, newValue) -> {
+            // Choosing a class assigns all of its detections, like the spinners of the old panes did
+            if (newValue != null && availableCounts.containsKey(newValue))
+                row.setObjectQty(availableCounts.get(newValue));
+            revalidate(row);
+        });
+        row.objectQtyProperty().addListener((observable, oldValue, newValue) -> revalidate(row));
+        row.wellCountProperty().addListener((observable, oldValue, newValue) -> revalidate(row));
+        apply(row, validate(row), 1);
+    }
+
+    private void unregister(WellAssignmentRow row) {
+        Contribution contribution = contributions.remove(row);
+        if (contribution != null)
+            apply(contribution, -1);
+    }
+
+    // Only this row and the classes it was and is assigned to are looked at
+    private void revalidate(WellAssignmentRow row) {
+        Contribution old = contributions.remove(row);
+        if (old == null)
+            return; // not in the table anymore
+        apply(old, -1);
+        apply(row, validate(row), 1);
+        updateSummary();
+    }
+
+    private Contribution validate(WellAssignmentRow row) {
+        String problem = getProblem(row);
+        row.setProblem(problem);
+        return new Contribution(getAssignedClass(row), row.getObjectQty(), isWellPlate ? row.getWellCount() : 0, !problem.isEmpty());
+    }
+
+    private void apply(WellAssignmentRow row, Contribution contribution, int sign) {
+        contributions.put(row, contribution);
+        apply(contribution, sign);
+    }
+
+    private void apply(Contribution contribution, int sign) {
+        assignedWells += sign * contribution.wellCount();
+        if (contribution.hasProblem())
+            problemRows += sign;
+        String className = contribution.className();
+        if (isClassification) {
+            if (className == null)
+                return;
+            assignedByClass.merge(className, sign * contribution.objectQty(), Integer::sum);
+            rowsByClass.merge(className, sign, Integer::sum);
+            updateMismatch(className);
+        }
+        else
+            assignedTotal += sign * contribution.objectQty();
+    }
+
+    private void updateMismatch(String className) {
+        int rows = rowsByClass.getOrDefault(className, 0);
+        if (rows > 0 && assignedByClass.getOrDefault(className, 0) != getAvailable(className))
+            mismatchedClasses.add(className);
+        else
+            mismatchedClasses.remove(className);
+    }
+
+    private String getAssignedClass(WellAssignmentRow row) {
+        if (!isClassification)
+            return null;
+        String className = row.getClassName();
+        return className == null || className.equals(NO_ASSIGNMENT) ? null : className;
+    }
+
+    private int getAvailable(String className) {
+        if (!isClassification)
+            return availableTotal;
+        return className == null ? 0 : availableCounts.getOrDefault(className, 0);
+    }
+
+    private String getProblem(WellAssignmentRow row) {
+        int objectQty = row.getObjectQty();
+        if (isClassification && getAssignedClass(row) == null)
+            return objectQty > 0 && row.getClassName() == null ? "No class chosen" : "";
+        int available = getAvailable(getAssignedClass(row));
+        if (objectQty > available)
+            return "Only " + available + " available";
+        if (!isWellPlate)
+            return "";
+        int wellCount = row.getWellCount();
+        if (wellCount > objectQty)
+            return "More wells than detections";
+        if (wellCount == 0 && objectQty != 0)
+            return "Can't assign to 0 wells";
+        if (wellCount != 0 && objectQty % wellCount != 0)
+            return "Not divisible by the wells, closest: " + (objectQty - objectQty % wellCount);
+        return "";
+    }
+
+    private void updateSummary() {
+        StringBuilder text = new StringBuilder();
+        if (isWellPlate)
+            text.append("Wells: ").append(assignedWells).append(" / ").append(maxWells).append(". ");
+        if (isClassification) {
+            if (mismatchedClasses.isEmpty())
+                text.append("Assigned classes match the available detections.");
+            else {
+                text.append("Not matching: ");
+                int listed = 0;
+                for (String className : mismatchedClasses) {
+                    if (listed++ == 3) {
+                        text.append("and ").append(mismatchedClasses.size() - 3).append(" more");
+                        break;
+                    }
+                    text.append(className).append(" (").append(assignedByClass.getOrDefault(className, 0))
+                            .append(" / ").append(getAvailable(className)).append(") ");
+                }
+            }
+        }
+        else
+            text.append("Assigned: ").append(assignedTotal).append(" / ").append(availableTotal);
+        if (problemRows > 0)
+            text.append(" Rows with problems: ").append(problemRows).append('.');
+        summary.set(text.toString().trim());
+    }
+
+    public ReadOnlyStringProperty summaryProperty() {
+        return summary.getReadOnlyProperty();
+    }
+
+    /**
+     * The detections may have been edited since the table was created; only then are all rows checked again.
+     */
+    public void setAvailableCounts(Map<String, Integer> availableCounts, int availableTotal) {
+        if (this.availableCounts.equals(availableCounts) && this.availableTotal == availableTotal)
+            return;
+        this.availableCounts = new HashMap<>(availableCounts);
+        this.availableTotal = availableTotal;
+        for (WellAssignmentRow row : getItems())
+            revalidate(row);
+        for (String className : new ArrayList<>(rowsByClass.keySet()))
+            updateMismatch(className);
+        updateSummary();
+        refresh();
+    }
+
+    /**
+     * Checks the totals kept while editing, shows what is wrong and selects the first row with a problem.
+     */
+    public boolean isAssignmentValid() {
+        if (problemRows > 0) {
+            for (WellAssignmentRow row : getItems()) {
+                if (!row.getProblem().isEmpty()) {
+                    getSelectionModel().select(row);
+                    scrollTo(row);
+                    Dialogs.showErrorMessage("Invalid Data", (row.getWellLabel() != null ? "Well " + row.getWellLabel() + ": " : "") + row.getProblem() + ".");
+                    return false;
+                }
+            }
+        }
+        if (isWellPlate && assignedWells > maxWells) {
+            Dialogs.showErrorMessage("Invalid Data", "The plate has " + maxWells + " wells, " + assignedWells + " were assigned.");
+            return false;
+        }
+        if (isClassification) {
+            if (rowsByClass.values().stream().allMatch(rows -> rows == 0)) {
+                Dialogs.showWarningNotification("Invalid Data", "No detections to assign.");
+                return false;
+            }
+            if (!mismatchedClasses.isEmpty()) {
+                Map<String, Integer> provided = new TreeMap<>();
+                for (String className : mismatchedClasses)
+                    provided.put(className, assignedByClass.getOrDefault(className, 0));
+                Map<String, Integer> available = new TreeMap<>();
+                for (String className : mismatchedClasses)
+                    available.put(className, getAvailable(className));
+                Dialogs.showErrorMessage("Invalid Data", "The entered detections of each assigned class have to match the available detections. " +
+                        "Available detections: " + available + ". " +
+                        "Provided detections: " + provided + ".");
+                return false;
+            }
+        }
+        else if (assignedTotal != availableTotal) {
+            Dialogs.showErrorMessage("Invalid Data", "The assigned number of detections (" + assignedTotal + ") has to match the number of processed detections (" + availableTotal + ").");
+            return false;
+        }
+        return true;
+    }
+}
@@ -4,86 +4,62 @@ import javafx.geometry.Insets;
 import javafx.scene.control.*;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
-import javafx.stage.Stage;
-import javafx.util.Duration;
 import org.cecad.lmd.commands.WellPlateCommand;
-import qupath.fx.dialogs.Dialogs;
+import org.cecad.lmd.common.WellAllocator;
+import org.cecad.lmd.common.WellAssignment;
+import org.cecad.lmd.common.WellPlateFormat;
 
 import java.util.*;
 
 import static org.cecad.lmd.common.Constants.Paths.TEMP_SUBDIRECTORY;
-import static org.cecad.lmd.common.Constants.WellDataFileNames._96_WELL_PLATE_DATA;
 
 public class WellPlatePane extends VBox {
 
     private final WellPlateCommand command;
-    private final String NUMBER_TEXT = "Objects (count)";
-    List<String> allClasses;
-    Map<String, Integer> classesCounts;
+    private final WellPlateFormat format;
+    private final WellAssignmentTable wellTable;
 
     public WellPlatePane(WellPlateCommand command, ControlsInterface controls) {
         super();
         this.command = command;
-        this.allClasses = command.getAllClassesNames();
-        this.classesCounts = command.getAllClassesCounts();
+        this.format = command.getFormat();
+        List<String> allClasses = command.getAllClassesNames();
 
         boolean isClassification = !allClasses.isEmpty();
 
         setPadding(new Insets(10)); // Set padding around the entire pane
         setSpacing(5); // Set spacing between elements
 
-        // Initial SubPane
-        WellPlateSubPane wellSubPane = new WellPlateSubPane(allClasses, classesCounts, command.getAllDetectionsCount());
-        wellSubPane.setPrefHeight(30);
-
-        Label wellLabel = new Label("Wells");
-        wellLabel.setPrefWidth(85);
-        Label classLabel = new Label("Objects (class)");
-        classLabel.setPrefWidth(100);
-
-        Label percentageLabel = new Label(NUMBER_TEXT);
-        percentageLabel.setPrefWidth(95);
-//        percentageLabel.setPadding(new Insets(0));
-//        percentageLabel.setOnAction(event -> {
-//            String text = percentageLabel.getText();
-//            if (Objects.equals(text, AREA_TEXT))
-//                percentageLabel.setText(NUMBER_TEXT);
-//            else if (Objects.equals(text, NUMBER_TEXT))
-//                percentageLabel.setText(AREA_TEXT);
-//        });
-
-        Tooltip classTooltip = new Tooltip("Classes of detections to export");
-        classLabel.setTooltip(classTooltip);
-        classTooltip.setShowDuration(new Duration(30000));
-        Tooltip wellTooltip = new Tooltip("The number of wells the detections will be equally distributed to, the labels will be generated at random");
-        wellLabel.setTooltip(wellTooltip);
-        wellTooltip.setShowDuration(new Duration(30000));
-        Tooltip percentageTooltip = new Tooltip("Amount of detection objects to assign to the specified number of wells in each batch");
-        percentageLabel.setTooltip(percentageTooltip);
-        percentageTooltip.setShowDuration(new Duration(30000));
-        HBox headerLabelsBox = new HBox();
-        headerLabelsBox.setSpacing(10);
-        if (isClassification)
-            headerLabelsBox.getChildren().addAll(wellLabel, classLabel, percentageLabel);
-        else
-            headerLabelsBox.getChildren().addAll(wellLabel, percentageLabel);
+        // The rows are only rendered while visible, the stage keeps its size however many are added
+        wellTable = new WellAssignmentTable(format.getWellCount(), allClasses, command.getAllClassesCounts(), command.getAllDetectionsCount());
+        wellTable.setPrefSize(isClassification ? 520 : 420, 300);
+        wellTable.addRow(null);
+
+        Label summaryLabel = new Label();
+        summaryLabel.textProperty().bind(wellTable.summaryProperty());
+        summaryLabel.setWrapText(true);
+        summaryLabel.maxWidthProperty().bind(wellTable.widthProperty());
 
         // Buttons
         Button addWellButton = new Button("+");
         addWellButton.setPrefSize(40, 25);
+        addWellButton.setOnAction(event -> {
+            WellAssignmentRow row = wellTable.addRow(null);
+            wellTable.getSelectionModel().select(row);
+            wellTable.scrollTo(row);
+        });
+        Button removeWellButton = new Button("-");
+        removeWellButton.setPrefSize(40, 25);
+        removeWellButton.disableProperty().bind(wellTable.getSelectionModel().selectedItemProperty().isNull());
+        removeWellButton.setOnAction(event -> wellTable.getItems().remove(wellTable.getSelectionModel().getSelectedItem()));
         HBox addWellBox = new HBox();
-        if (isClassification)
-            addWellBox.setSpacing(125);
-        else
-            addWellBox.setSpacing(92);
-        addWellBox.getChildren().addAll(new Label(""), addWellButton);
+        addWellBox.setSpacing(10);
+        addWellBox.getChildren().addAll(addWellButton, removeWellButton);
 
         HBox controlsButtonsBox = new HBox();
         controlsButtonsBox.setSpacing(10);
 
         int BUTTON_WIDTH = 140;
-        if (!isClassification)
-            BUTTON_WIDTH = 105;
         int BUTTON_HEIGHT = 25;
 
         Button cancelButton = new Button("Cancel");
@@ -93,97 +69,32 @@ public class WellPlatePane extends VBox {
         Button doneButton = new Button("Save");
         doneButton.setPrefSize(BUTTON_WIDTH, BUTTON_HEIGHT);
         doneButton.setOnAction(event -> {
-            if (isWellDataValid()){
-                List<Map<String, Object>> wellDataList = getWellDataFromSubPanes(isClassification);
+            // The detections may have been edited meanwhile
+            wellTable.setAvailableCounts(command.getAllClassesCounts(), command.getAllDetectionsCount());
+            if (wellTable.isAssignmentValid()){
+                List<WellAssignment> wellDataList = getWellData(isClassification);
                 if (TEMP_SUBDIRECTORY == null)
                     command.getLogger().error("'LMD Data/.temp' subdirectory doesn't exist! Please restart the extension.");
-                IOUtils.saveWellsToFile(TEMP_SUBDIRECTORY, wellDataList, _96_WELL_PLATE_DATA, command.getLogger());
+                IOUtils.saveWellsToFile(TEMP_SUBDIRECTORY, wellDataList, format.getDataFileName(), command.getLogger());
 
-                controls.updateCollectorLabel("96-Well Plate");
+                controls.updateCollectorLabel(format.getCollectorName());
                 command.closeStage();
             }
         });
 
         controlsButtonsBox.getChildren().addAll(cancelButton, doneButton);
 
-        getChildren().addAll(headerLabelsBox, wellSubPane, addWellBox, controlsButtonsBox);
-
-        addWellButton.setOnAction(event -> {
-            addWellSection(getChildren().indexOf(addWellBox));
-        });
+        getChildren().addAll(wellTable, addWellBox, summaryLabel, controlsButtonsBox);
     }
 
-    private void addWellSection(int index) {
-        // Create a new well section pane
-        WellPlateSubPane newSubPane = new WellPlateSubPane(allClasses, classesCounts, command.getAllDetectionsCount());
-        newSubPane.setPrefHeight(30);
-
-        // Insert the new subPane before the "+" button
-        getChildren().add(index, newSubPane);
-
-        Stage stage = (Stage) getScene().getWindow();
-        stage.sizeToScene();
-    }
-
-    private boolean isWellDataValid(){
-        boolean isClassification = !allClasses.isEmpty();
-
-        if (isClassification) {
-            Map<String, Integer> actualClassesCounts = new HashMap<>();
-
-            for (int i = 0; i < getChildren().size(); i++) {
-
-                if (getChildren().get(i) instanceof WellPlateSubPane subPane) {
-                    if (!subPane.isSubPaneDataValid(true))
-                        return false;
-
-                    Map<String, Integer> subPaneCounts = subPane.getObjectsForClassCount();
-                    for (Map.Entry<String, Integer> entry : subPaneCounts.entrySet()) {
-                        actualClassesCounts.merge(entry.getKey(), entry.getValue(), Integer::sum);
-                    }
-                }
-
-            }
-            boolean areCountsEqual = actualClassesCounts.entrySet().stream()
-                    .allMatch(entry -> {
-                        String className = entry.getKey();
-                        Integer actualCount = entry.getValue();
-                        Integer referenceCount = classesCounts.get(className);
-                        return referenceCount.equals(actualCount);
-                    });
-            if (!areCountsEqual) {
-                Dialogs.showErrorMessage("Invalid Data", "Total number of entered detections is larger than the number of available detections. " +
-                        "Available detections: " + classesCounts + ". " +
-                        "Provided detections: " + actualClassesCounts + ".");
-                return false;
-            }
-        }
-        else {
-            int referenceAllDetectionsCount = command.getAllDetectionsCount();
-            int actualAllDetectionsCount = 0;
-
-            for (int i = 0; i < getChildren().size(); i++) {
-                if (getChildren().get(i) instanceof WellPlateSubPane subPane) {
-                    actualAllDetectionsCount += subPane.getBasicCount();
-                }
-            }
-            if (referenceAllDetectionsCount != actualAllDetectionsCount){
-                Dialogs.showErrorMessage("Invalid Data", "The assigned number of detections can't exceed the total number of processed detections.");
-                return false;
-            }
-        }
-        return true;
-    }
-
-    private List<Map<String, Object>> getWellDataFromSubPanes(boolean isClassification) {
-        List<Map<String, Object>> wellDataList = new ArrayList<>();
-        Set<String> usedLabels = new HashSet<>();
-        for (int i = 0; i < getChildren().size(); i++) {
-            if (getChildren().get(i) instanceof WellPlateSubPane subPane) {
-                Map<String, Object> wellData = subPane.getSubPaneWellData(usedLabels, isClassification);
-                wellDataList.add(wellData);
-            }
+    private List<WellAssignment> getWellData(boolean isClassification) {
+        List<WellAssignment> wellAssignments = new ArrayList<>();
+        WellAllocator wellAllocator = new WellAllocator(format);
+        for (WellAssignmentRow row : wellTable.getItems()) {
+            // Labels are only made from the indices when the XML is written
+            int[] wellIndices = wellAllocator.allocate(row.getWellCount());
+            wellAssignments.add(new WellAssignment(null, wellIndices, isClassification ? row.getClassName() : null, row.getObjectQty()));
         }
-        return wellDataList;
+        return wellAssignments;
     }
 }
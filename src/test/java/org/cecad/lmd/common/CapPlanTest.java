@@ -0,0 +1,73 @@
+package org.cecad.lmd.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CapPlanTest {
+
+    private static final int NO_CAP = CapAssigner.NO_CAP;
+
+    @Test
+    void eachClassFollowsItsOwnAssignments() {
+        List<WellAssignment> assignments = List.of(
+                new WellAssignment("A", null, "Tumor", 2),
+                new WellAssignment("B", null, "Stroma", 1),
+                new WellAssignment("C", null, "Tumor", 1));
+        List<String> classes = List.of("Tumor", "Stroma", "Tumor", "Tumor");
+
+        CapPlan plan = CapPlan.createFromClassNames(classes, assignments, null);
+
+        // Stroma taking B doesn't move the Tumor cursor, which goes on to C once A is full
+        assertArrayEquals(new int[]{0, 1, 0, 2}, plan.getCapIndexByShape());
+        assertEquals(List.of("A", "B", "A", "C"), Arrays.asList(plan.getCapLabel(0), plan.getCapLabel(1), plan.getCapLabel(2), plan.getCapLabel(3)));
+        assertEquals(Map.of("Tumor", List.of("A", "C"), "Stroma", List.of("B")), plan.getWellLabelsByClass());
+        assertEquals(Map.of("A", 2, "B", 1, "C", 1), plan.getShapesCountByWell());
+    }
+
+    @Test
+    void plateWellsAreFilledFromTheLastWell() {
+        WellPlateFormat format = WellPlateFormat.PLATE_96;
+        List<WellAssignment> assignments = List.of(new WellAssignment(null, new int[]{5, 17}, "Tumor", 4));
+
+        CapPlan plan = CapPlan.createFromClassNames(List.of("Tumor", "Tumor", "Tumor", "Tumor"), assignments, format);
+
+        assertArrayEquals(new int[]{17, 17, 5, 5}, plan.getCapIndexByShape());
+        assertEquals("B6", plan.getCapLabel(0));
+        assertEquals("A6", plan.getCapLabel(2));
+        assertEquals(List.of("B6", "A6"), plan.getWellLabelsByClass().get("Tumor"));
+    }
+
+    @Test
+    void unclassifiedShapesTakeTheFirstAssignmentWithRoom() {
+        List<WellAssignment> assignments = List.of(
+                new WellAssignment("A", null, null, 2),
+                new WellAssignment("B", null, null, 1));
+
+        CapPlan plan = CapPlan.createFromClassNames(Arrays.asList(null, null, null), assignments, null);
+
+        assertArrayEquals(new int[]{0, 0, 1}, plan.getCapIndexByShape());
+        assertTrue(plan.getWellLabelsByClass().isEmpty());
+        assertEquals(Map.of("A", 2, "B", 1), plan.getShapesCountByWell());
+    }
+
+    @Test
+    void shapesBeyondTheAssignmentsGetNoCap() {
+        WellPlateFormat format = WellPlateFormat.PLATE_96;
+        // 5 over 2 wells is 2 per well, the fifth shape is left out like the ones of a class without assignment
+        List<WellAssignment> assignments = List.of(new WellAssignment(null, new int[]{0, 1}, "Tumor", 5));
+        List<String> classes = List.of("Tumor", "Tumor", "Tumor", "Tumor", "Tumor", "Stroma");
+
+        CapPlan plan = CapPlan.createFromClassNames(classes, assignments, format);
+
+        assertArrayEquals(new int[]{1, 1, 0, 0, NO_CAP, NO_CAP}, plan.getCapIndexByShape());
+        assertNull(plan.getCapLabel(4));
+        assertNull(plan.getCapLabel(5));
+        assertFalse(plan.getWellLabelsByClass().containsKey("Stroma"));
+        assertEquals(Map.of("A1", 2, "A2", 2), plan.getShapesCountByWell());
+    }
+}